@@ -0,0 +1,71 @@
+package com.guba.mogilefs;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borrow/return throughput of BackendPool against the GenericObjectPool
+ * setup PooledMogileFSImpl used to build, with 64 threads hammering a pool
+ * of 64 objects. The pooled objects are dummies, so this measures nothing
+ * but the pools themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class BackendPoolBenchmark {
+
+    @Param({"generic", "backend", "backend-affinity"})
+    public String pool;
+
+    private ObjectPool objectPool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BasePoolableObjectFactory factory = new BasePoolableObjectFactory() {
+            @Override
+            public Object makeObject() {
+                return new Object();
+            }
+        };
+
+        if ("generic".equals(pool)) {
+            objectPool = new GenericObjectPool(factory, 64, GenericObjectPool.WHEN_EXHAUSTED_BLOCK, 1000 * 60,
+                    64, 1, true, true, 20 * 1000, -1, 30000, true, 5 * 1000);
+        } else {
+            objectPool = new BackendPool(factory, 64, 64, 1000 * 60, 30000, "backend-affinity".equals(pool));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        objectPool.close();
+    }
+
+    @Benchmark
+    public Object borrowAndReturn() throws Exception {
+        Object object = objectPool.borrowObject();
+        objectPool.returnObject(object);
+        return object;
+    }
+}
@@ -0,0 +1,162 @@
+package com.guba.mogilefs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares TrackerCodec against the URLEncoder / String.split() / regex
+ * based encoding and decoding Backend used to do. Run it with
+ * "gradle jmh", and add "-prof gc" to the arguments to see the allocation
+ * rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackerCodecBenchmark {
+
+    private static final Pattern ERROR_PATTERN = Pattern.compile("^ERR\\s+(\\w+)\\s*(\\S*)");
+
+    private static final Pattern OK_PATTERN = Pattern.compile("^OK\\s+\\d*\\s*(\\S*)");
+
+    private static final String[] ARGS = {"domain", "images", "key", "thumbs/2011/08/30/some image.jpg",
+            "noverify", "1"};
+
+    private static final String RESPONSE = "OK paths=3"
+            + "&path1=http://10.0.0.1:7500/dev11/0/000/123/0000123456.fid"
+            + "&path2=http://10.0.0.2:7500/dev27/0/000/123/0000123456.fid"
+            + "&path3=http://10.0.0.3:7500/dev42/0/000/123/0000123456.fid";
+
+    private final TrackerCodec codec = new TrackerCodec();
+
+    private ByteArrayInputStream responseBytes;
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        responseBytes = new ByteArrayInputStream((RESPONSE + "\r\n").getBytes("UTF-8"));
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        String request = "get_paths " + encodeURLString(ARGS) + "\r\n";
+        byte[] bytes = request.getBytes("UTF-8");
+        sink.write(bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public TrackerCodec encodeCodec() throws IOException {
+        codec.clearRequest();
+        codec.encodeRequest("get_paths", ARGS);
+        codec.writeRequest(sink);
+        return codec;
+    }
+
+    @Benchmark
+    public Map<String, String> decodeLegacy() {
+        Matcher ok = OK_PATTERN.matcher(RESPONSE);
+        if (ok.matches()) {
+            return decodeURLString(ok.group(1));
+        }
+        Matcher err = ERROR_PATTERN.matcher(RESPONSE);
+        err.matches();
+        return null;
+    }
+
+    @Benchmark
+    public Map<String, String> decodeCodec() throws IOException {
+        responseBytes.reset();
+        codec.resetInput();
+        if (codec.readResponse(responseBytes) == TrackerCodec.RESPONSE_OK) {
+            return codec.decodeArgs();
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String[] decodePathsLegacy() {
+        Map<String, String> response = decodeLegacy();
+        int pathCount = Integer.parseInt(response.get("paths"));
+        String[] paths = new String[pathCount];
+        for (int i = 1; i <= pathCount; i++) {
+            paths[i - 1] = response.get("path" + i);
+        }
+        return paths;
+    }
+
+    @Benchmark
+    public String[] decodePathsCodec() throws IOException {
+        responseBytes.reset();
+        codec.resetInput();
+        if (codec.readResponse(responseBytes) == TrackerCodec.RESPONSE_OK) {
+            return ResponseDecoder.PATHS.decode(codec);
+        }
+        return null;
+    }
+
+    /* what Backend and BaseMogileFSImpl used to do */
+
+    private static String encodeURLString(final String[] args) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (encoded.length() > 0) {
+                encoded.append("&");
+            }
+            encoded.append(args[i]);
+            encoded.append("=");
+            encoded.append(URLEncoder.encode(args[i + 1], "UTF-8"));
+        }
+
+        return encoded.toString();
+    }
+
+    private static Map<String, String> decodeURLString(final String encoded) {
+        Map<String, String> map = new HashMap<String, String>();
+        try {
+            String parts[] = encoded.split("&");
+            for (int i = 0; i < parts.length; i++) {
+                String pair[] = parts[i].split("=");
+                if (pair.length != 2) {
+                    continue;
+                }
+                map.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+            }
+            return map;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
@@ -10,15 +10,12 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.channels.IllegalBlockingModeException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class talks to the trackers. It randomly connects to one of them, and
@@ -34,23 +31,36 @@ class Backend {
 
     private List<InetSocketAddress> hosts;
 
-    private Map<InetSocketAddress, Long> deadHosts;
+    private TrackerHealth health;
+
+    private SocketConfig socketConfig;
+
+    /* the read timeout currently set on cachedSocket */
+    private int soTimeout;
 
     private String lastErr;
 
     private String lastErrStr;
 
-    private SocketWithReaderAndWriter cachedSocket;
+    private String[] lastErrs;
 
-    private static final Pattern ERROR_PATTERN = Pattern.compile("^ERR\\s+(\\w+)\\s*(\\S*)");
+    private String[] lastErrStrs;
 
-    private static final int ERR_PART = 1;
+    private SocketWithReaderAndWriter cachedSocket;
+
+    /* when cachedSocket was connected, System.currentTimeMillis() */
+    private long connectedAt;
 
-    private static final int ERRSTR_PART = 2;
+    /* once this is past, the pool should retire us, 0 for never */
+    private long expiresAt;
 
-    private Pattern OK_PATTERN = Pattern.compile("^OK\\s+\\d*\\s*(\\S*)");
+    private final TrackerCodec codec = new TrackerCodec();
 
-    private static final int ARGS_PART = 1;
+    /**
+     * Max number of requests we put on the wire before reading responses
+     * back in a pipelined batch.
+     */
+    private static final int MAX_PIPELINE_DEPTH = 64;
 
     /**
      * Create the backend. Optionally connect to a tracker right now to ensure
@@ -63,9 +73,42 @@ class Backend {
 
     public Backend(final List<InetSocketAddress> trackers, final boolean connectNow)
             throws NoTrackersException {
+        this.socketConfig = new SocketConfig();
         reload(trackers, connectNow);
     }
 
+    /**
+     * Create the backend with tracker statistics shared with other
+     * Backends. Optionally connect to a tracker right now to ensure one is
+     * available right off the bat.
+     *
+     * @param health     the trackers, and what we know about them
+     * @param connectNow if true, try to connect to a socket
+     * @throws NoTrackersException
+     */
+
+    public Backend(final TrackerHealth health, final boolean connectNow)
+            throws NoTrackersException {
+        this(health, new SocketConfig(), connectNow);
+    }
+
+    /**
+     * Create the backend with tracker statistics shared with other
+     * Backends, using the given socket options. Optionally connect to a
+     * tracker right now to ensure one is available right off the bat.
+     *
+     * @param health       the trackers, and what we know about them
+     * @param socketConfig timeouts and other socket options
+     * @param connectNow   if true, try to connect to a socket
+     * @throws NoTrackersException
+     */
+
+    public Backend(final TrackerHealth health, final SocketConfig socketConfig, final boolean connectNow)
+            throws NoTrackersException {
+        this.socketConfig = socketConfig;
+        reload(health, connectNow);
+    }
+
     /**
      * Reset the list of trackers. Optionally try to connect to one of them
      * immediately.
@@ -77,26 +120,35 @@ class Backend {
 
     public void reload(final List<InetSocketAddress> trackers, final boolean connectNow)
             throws NoTrackersException {
-        this.hosts = trackers;
+        reload(new TrackerHealth(trackers), connectNow);
+    }
+
+    private void reload(final TrackerHealth health, final boolean connectNow)
+            throws NoTrackersException {
+        // the connection count of the old socket belongs to the old trackers
+        closeSocket();
+
+        this.health = health;
+        this.hosts = health.getTrackers();
 
         if (hosts.size() == 0) {
             throw new NoTrackersException();
         }
 
-        this.deadHosts = new HashMap<InetSocketAddress, Long>();
-
         this.lastErr = null;
         this.lastErrStr = null;
+        this.lastErrs = null;
+        this.lastErrStrs = null;
 
-        cachedSocket = null;
         if (connectNow) {
-            cachedSocket = getSocket();
+            useSocket(getSocket());
         }
     }
 
 
     /**
-     * Randomly pick from our list of hosts and try to connect to one of them.
+     * Pick from our list of hosts, preferring the ones that have been
+     * answering quickly, and try to connect to one of them.
      * If we get an error connecting to a host, then make a note that it is
      * dead. If we can't connect to any host, throw a 'NoTrackersException'.
      * This function never returns null.
@@ -108,16 +160,15 @@ class Backend {
     private SocketWithReaderAndWriter getSocket() throws NoTrackersException {
         int hostSize = hosts.size();
         int tries = (hostSize > 15) ? 15 : hostSize;
-        int index = (int) Math.floor(hosts.size() * Math.random());
+        int[] order = health.connectOrder();
 
         long now = System.currentTimeMillis();
-        while (tries-- > 0) {
-            InetSocketAddress host = hosts.get(index++
-                    % hostSize);
+        for (int i = 0; i < tries; i++) {
+            int index = order[i];
+            InetSocketAddress host = hosts.get(index);
 
             // try dead hosts every 5 seconds
-            Long deadTime = deadHosts.get(host);
-            if ((deadTime != null) && (deadTime.longValue() > (now - 5000))) {
+            if (health.isDead(index, now)) {
                 if (log.isDebugEnabled()) {
                     log.debug(" skipping connect attempt to dead host " + host);
                 }
@@ -127,16 +178,16 @@ class Backend {
             try {
                 // connect to the server
                 Socket socket = new Socket();
-                // 30 second timeout
-                socket.setSoTimeout(30000);
-                socket.connect(host, 3000);
+                socketConfig.applyToTrackerSocket(socket);
+                socket.connect(host, socketConfig.getTrackerConnectTimeout());
 
                 if (log.isDebugEnabled()) {
                     log.debug("connected to tracker " + socket.getInetAddress().getHostName());
                 }
 
                 // if we made it here, then the connection is good!
-                return new SocketWithReaderAndWriter(socket);
+                health.markAlive(index);
+                return new SocketWithReaderAndWriter(socket, index);
 
             } catch (IOException e) {
                 log.warn("Unable to connect to tracker at " +
@@ -154,7 +205,8 @@ class Backend {
 
             // something went wrong, so mark the host as dead
             log.warn("marking host " + host + " as dead");
-            deadHosts.put(host, new Long(now));
+            health.markDead(index, now);
+            health.recordFailure(index);
         }
 
         // didn't find anything! throw an exception!
@@ -175,27 +227,141 @@ class Backend {
 
     public Map<String, String> doRequest(final String command, final String[] args)
             throws NoTrackersException, TrackerCommunicationException {
+        return doRequest(command, args, ResponseDecoder.MAP);
+    }
+
+    /**
+     * Send a request to the tracker and let the given decoder turn the
+     * response into something more useful than a Map.
+     *
+     * @param command
+     * @param args    Optional arguments. May be null. This is a hash mapped to an
+     *                array of strings.
+     * @param decoder decodes an OK response
+     * @return null on error, otherwise results of command
+     * @throws NoTrackersException thrown if we can't get ahold of a tracker
+     */
+
+    public <T> T doRequest(final String command, final String[] args, final ResponseDecoder<T> decoder)
+            throws NoTrackersException, TrackerCommunicationException {
         if ((command == null) || (args == null)) {
             log.error("null command or args sent to doRequest");
             return null;
         }
 
-        String argString = encodeURLString(args);
-        String request = command + " " + argString + "\r\n";
+        codec.clearRequest();
+        codec.encodeRequest(command, args);
 
         if (log.isDebugEnabled()) {
-            log.debug("command: " + request);
+            log.debug("command: " + command + " " + Arrays.toString(args));
+        }
+
+        long start = System.nanoTime();
+        sendRequest();
+        setReadTimeout(command);
+
+        T result = readResponse(decoder);
+        health.recordSuccess(cachedSocket.getTrackerIndex(), System.nanoTime() - start);
+
+        return result;
+    }
+
+    /**
+     * Send a batch of requests for the same command to the tracker without
+     * waiting for a response between them. The requests are written back to
+     * back (at most MAX_PIPELINE_DEPTH at a time, so that neither side blocks
+     * on a full socket buffer) and the responses are read back in order.
+     * <p/>
+     * If the tracker answers one of the requests with an error, the matching
+     * entry in the returned list is null and the error is available through
+     * getLastErr(int) and getLastErrStr(int) with the same index.
+     *
+     * @param command  the command to send for every entry
+     * @param argsList one array of arguments per request, like doRequest
+     * @return results in the same order as argsList, null on error
+     * @throws NoTrackersException thrown if we can't get ahold of a tracker
+     */
+
+    public List<Map<String, String>> doPipelinedRequest(final String command, final List<String[]> argsList)
+            throws NoTrackersException, TrackerCommunicationException {
+        return doPipelinedRequest(command, argsList, ResponseDecoder.MAP);
+    }
+
+    /**
+     * Like doPipelinedRequest(String, List), but decode each response with
+     * the given decoder.
+     *
+     * @param command  the command to send for every entry
+     * @param argsList one array of arguments per request, like doRequest
+     * @param decoder  decodes an OK response
+     * @return results in the same order as argsList, null on error
+     * @throws NoTrackersException thrown if we can't get ahold of a tracker
+     */
+
+    public <T> List<T> doPipelinedRequest(final String command, final List<String[]> argsList,
+                                          final ResponseDecoder<T> decoder)
+            throws NoTrackersException, TrackerCommunicationException {
+        if ((command == null) || (argsList == null)) {
+            log.error("null command or args sent to doPipelinedRequest");
+            return null;
+        }
+
+        int size = argsList.size();
+        List<T> results = new ArrayList<T>(size);
+        lastErrs = new String[size];
+        lastErrStrs = new String[size];
+
+        for (int start = 0; start < size; start += MAX_PIPELINE_DEPTH) {
+            int end = Math.min(start + MAX_PIPELINE_DEPTH, size);
+
+            codec.clearRequest();
+            for (int i = start; i < end; i++) {
+                codec.encodeRequest(command, argsList.get(i));
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("pipelining " + (end - start) + " '" + command + "' commands");
+            }
+
+            long startNanos = System.nanoTime();
+            sendRequest();
+            setReadTimeout(command);
+
+            for (int i = start; i < end; i++) {
+                lastErr = null;
+                lastErrStr = null;
+
+                results.add(readResponse(decoder));
+
+                if (i == start) {
+                    // the first response of a window is a fair round trip time
+                    health.recordSuccess(cachedSocket.getTrackerIndex(), System.nanoTime() - startNanos);
+                }
+
+                lastErrs[i] = lastErr;
+                lastErrStrs[i] = lastErrStr;
+            }
         }
 
+        return results;
+    }
+
+    /**
+     * Write the request lines sitting in the codec to the tracker. We try our
+     * cached socket first, and if that is gone or went bad, connect to another
+     * tracker.
+     */
+
+    private void sendRequest()
+            throws NoTrackersException, TrackerCommunicationException {
         if (cachedSocket != null) {
             // try our cached socket, but assume it might be bogus
             try {
-                cachedSocket.getWriter().write(request);
-                cachedSocket.getWriter().flush();
+                codec.writeRequest(cachedSocket.getOutputStream());
 
             } catch (IOException e) {
                 log.debug("cached socket went bad while sending request");
-                cachedSocket = null;
+                closeSocket();
             }
         }
 
@@ -206,45 +372,96 @@ class Backend {
             SocketWithReaderAndWriter socket = getSocket();
 
             try {
-                socket.getWriter().write(request);
-                socket.getWriter().flush();
+                codec.writeRequest(socket.getOutputStream());
 
             } catch (IOException e) {
+                socket.close();
                 throw new TrackerCommunicationException(
                         "problem finding a working tracker in this list: "
                                 + listKnownTrackers());
 
             }
 
-            cachedSocket = socket;
+            useSocket(socket);
+        }
+    }
+
+    /**
+     * Start using a freshly connected socket.
+     */
+
+    private void useSocket(final SocketWithReaderAndWriter socket) {
+        cachedSocket = socket;
+        soTimeout = socketConfig.getTrackerSoTimeout();
+        connectedAt = System.currentTimeMillis();
+        codec.resetInput();
+        health.connectionOpened(socket.getTrackerIndex());
+    }
+
+    /**
+     * Give the tracker as long to answer as the given command deserves.
+     */
+
+    private void setReadTimeout(final String command) throws TrackerCommunicationException {
+        int timeout = socketConfig.getCommandTimeout(command);
+        if (timeout == soTimeout) {
+            return;
+        }
+
+        try {
+            cachedSocket.getSocket().setSoTimeout(timeout);
+            soTimeout = timeout;
+        } catch (IOException e) {
+            String message = "problem setting timeout for '" + command + "' on socket to "
+                    + cachedSocket.getSocket().getInetAddress();
+            closeSocket();
+            throw new TrackerCommunicationException(message, e);
+        }
+    }
+
+    /**
+     * Close and forget about the socket we've been using, if any.
+     */
+
+    private void closeSocket() {
+        if (cachedSocket != null) {
+            health.connectionClosed(cachedSocket.getTrackerIndex());
+            cachedSocket.close();
+            cachedSocket = null;
         }
+    }
+
+    /**
+     * Read the next response line from the tracker and decode it.
+     *
+     * @return null on error, otherwise results of command
+     */
 
+    private <T> T readResponse(final ResponseDecoder<T> decoder) throws TrackerCommunicationException {
         try {
             // ok - we finally got a message off to a tracker
             // now get a response
-            String response = cachedSocket.getReader().readLine();
-
-            if (response == null) {
-                throw new TrackerCommunicationException(
-                        "received null response from tracker at "
-                                + cachedSocket.getSocket().getInetAddress());
-            }
+            int status = codec.readResponse(cachedSocket.getInputStream());
 
             if (log.isDebugEnabled()) {
-                log.debug("response: " + response);
+                log.debug("response: " + codec.getResponseLine());
             }
 
-            Matcher ok = OK_PATTERN.matcher(response);
-            if (ok.matches()) {
+            if (status == TrackerCodec.RESPONSE_OK) {
                 // good response
-                return decodeURLString(ok.group(ARGS_PART));
+                T result = decoder.decode(codec);
+                if (result != null) {
+                    return result;
+                }
+
+                // an OK without what the decoder needs is as good as garbage
+                status = TrackerCodec.RESPONSE_INVALID;
             }
 
-            Matcher err = ERROR_PATTERN.matcher(response);
-            if (err.matches()) {
+            if (status == TrackerCodec.RESPONSE_ERR) {
                 // error response
-                lastErr = err.group(ERR_PART);
-                lastErrStr = err.group(ERRSTR_PART);
+                lastErr = codec.getErr();
+                lastErrStr = codec.getErrStr();
 
                 if (log.isDebugEnabled()) {
                     log.debug("error message from tracker: " + lastErr + ", " + lastErrStr);
@@ -253,19 +470,26 @@ class Backend {
                 return null;
             }
 
-            throw new TrackerCommunicationException(
-                    "invalid server response from "
-                            + cachedSocket.getSocket().getInetAddress() + ": "
-                            + response);
+            // we can't tell where this response ends, so whatever comes next
+            // on the socket can't be trusted to answer our next request
+            String message = "invalid server response from "
+                    + cachedSocket.getSocket().getInetAddress() + ": "
+                    + codec.getResponseLine();
+            health.recordFailure(cachedSocket.getTrackerIndex());
+            closeSocket();
+            throw new TrackerCommunicationException(message);
 
         } catch (IOException e) {
-            // problem reading the response
+            // problem reading the response. Any responses we haven't read yet
+            // would be taken for answers to later requests, so drop the socket
+            String message = "problem talking to server at "
+                    + cachedSocket.getSocket().getInetAddress();
             log.warn("problem reading response from server (" +
                     cachedSocket.getSocket().getInetAddress() + ")", e);
+            health.recordFailure(cachedSocket.getTrackerIndex());
+            closeSocket();
 
-            throw new TrackerCommunicationException(
-                    "problem talking to server at "
-                            + cachedSocket.getSocket().getInetAddress(), e);
+            throw new TrackerCommunicationException(message, e);
         }
     }
 
@@ -290,93 +514,48 @@ class Backend {
     }
 
     /**
-     * Make sexy string that lists all the trackers we know about.
+     * Return the error code for one entry of the last pipelined request,
+     * or null if that entry succeeded.
      *
+     * @param index position of the request in the pipelined batch
      * @return
      */
 
-    private String listKnownTrackers() {
-        StringBuilder trackers = new StringBuilder();
-        Iterator<InetSocketAddress> it = hosts.iterator();
-        while (it.hasNext()) {
-            InetSocketAddress host = it.next();
-
-            if (trackers.length() > 0) {
-                trackers.append(", ");
-            }
-            trackers.append(host.toString());
-        }
-
-        return trackers.toString();
+    public String getLastErr(final int index) {
+        return (lastErrs == null) ? null : lastErrs[index];
     }
 
     /**
-     * Encode a map of key, value pairs into a URL format
+     * Return the error string for one entry of the last pipelined request,
+     * or null if that entry succeeded.
      *
-     * @param args
-     * @return never returns null, unless java has a problem encoding UTF-8
+     * @param index position of the request in the pipelined batch
+     * @return
      */
 
-    private String encodeURLString(final String[] args) {
-        try {
-            StringBuilder encoded = new StringBuilder();
-
-            for (int i = 0; i < args.length; i += 2) {
-                String key = args[i];
-                String value = args[i + 1];
-
-                if (encoded.length() > 0) {
-                    encoded.append("&");
-                }
-                encoded.append(key);
-                encoded.append("=");
-                encoded.append(URLEncoder.encode(value, "UTF-8"));
-            }
-
-            return encoded.toString();
-
-        } catch (UnsupportedEncodingException e) {
-            log.error("problem encoding URL for tracker", e);
-
-            // what to return here... this really shouldn't happen
-            return null;
-        }
+    public String getLastErrStr(final int index) {
+        return (lastErrStrs == null) ? null : lastErrStrs[index];
     }
 
     /**
-     * Decode a urlencoded string into a bunch of (key, value) pairs
+     * Make sexy string that lists all the trackers we know about.
      *
-     * @param encoded
-     * @return only returns null if java has a problem decoding UTF-8, which
-     *         should never happen
+     * @return
      */
 
-    private Map<String, String> decodeURLString(final String encoded) {
-        Map<String, String> map = new HashMap<String, String>();
-        try {
-            if ((encoded == null) || (encoded.length() == 0)) {
-                return map;
-            }
-
-            String parts[] = encoded.split("&");
-            for (int i = 0; i < parts.length; i++) {
-                String pair[] = parts[i].split("=");
-
-                if ((pair == null) || (pair.length != 2)) {
-                    log.error("poorly encoded string: " + encoded);
-                    continue;
-                }
+    private String listKnownTrackers() {
+        StringBuilder trackers = new StringBuilder();
+        Iterator<InetSocketAddress> it = hosts.iterator();
+        while (it.hasNext()) {
+            InetSocketAddress host = it.next();
 
-                map.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+            if (trackers.length() > 0) {
+                trackers.append(", ");
             }
-
-            return map;
-
-        } catch (UnsupportedEncodingException e) {
-            log.error("problem decoding URL from tracker", e);
-
-            return null;
+            trackers.append(host.toString());
         }
+
+        return trackers.toString();
     }
 
     /**
@@ -399,13 +578,7 @@ class Backend {
      */
 
     public void destroy() {
-        if (cachedSocket != null) {
-            try {
-                cachedSocket.getSocket().close();
-            } catch (IOException e) {
-                // ignore
-            }
-        }
+        closeSocket();
     }
 
     /**
@@ -415,6 +588,37 @@ class Backend {
     public boolean isConnected() {
         return ((cachedSocket != null) && (cachedSocket.getSocket().isConnected()));
     }
+
+    /**
+     * Return the position in the tracker list of the tracker we're
+     * connected to, or -1 if we're not connected.
+     */
+
+    public int getTrackerIndex() {
+        return (cachedSocket == null) ? -1 : cachedSocket.getTrackerIndex();
+    }
+
+    /**
+     * How long we've been talking to the current tracker, in milliseconds.
+     */
+
+    public long getConnectionAge(final long now) {
+        return (cachedSocket == null) ? 0 : now - connectedAt;
+    }
+
+    /**
+     * Tell the pool to retire this backend once it is past this time.
+     *
+     * @param expiresAt System.currentTimeMillis() based, 0 for never
+     */
+
+    public void setExpiresAt(final long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired(final long now) {
+        return (expiresAt > 0) && (now >= expiresAt);
+    }
 }
 
 /**
@@ -425,22 +629,25 @@ class SocketWithReaderAndWriter {
 
     private Socket socket;
 
-    private BufferedReader reader;
+    private InputStream in;
+
+    private OutputStream out;
 
-    private Writer writer;
+    private int trackerIndex;
 
-    public SocketWithReaderAndWriter(final Socket socket) throws IOException {
+    public SocketWithReaderAndWriter(final Socket socket, final int trackerIndex) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket
-                .getInputStream()));
-        this.writer = new OutputStreamWriter(socket.getOutputStream());
+        this.trackerIndex = trackerIndex;
+        // TrackerCodec does its own buffering, so these are the raw streams
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
     }
 
     /**
-     * @return Returns the reader.
+     * @return Returns the input stream.
      */
-    public BufferedReader getReader() {
-        return reader;
+    public InputStream getInputStream() {
+        return in;
     }
 
     /**
@@ -451,10 +658,17 @@ class SocketWithReaderAndWriter {
     }
 
     /**
-     * @return Returns the writer.
+     * @return Returns the position of the tracker in the tracker list.
+     */
+    public int getTrackerIndex() {
+        return trackerIndex;
+    }
+
+    /**
+     * @return Returns the output stream.
      */
-    public Writer getWriter() {
-        return writer;
+    public OutputStream getOutputStream() {
+        return out;
     }
 
     /**
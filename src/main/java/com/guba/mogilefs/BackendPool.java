@@ -0,0 +1,342 @@
+package com.guba.mogilefs;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ObjectPool for Backends that doesn't take a pool-wide lock on borrow or
+ * return, unlike commons-pool's GenericObjectPool. Idle objects sit in a
+ * lock-free queue, each one guarded by its own state flag, and the limit on
+ * active objects is a Semaphore. With thread affinity turned on, a thread
+ * first tries to get back the object it used last, which usually works
+ * without touching the shared queue at all.
+ * <p/>
+ * Objects are validated on borrow only. Objects that sat idle for longer
+ * than maxIdleTimeMillis are destroyed instead of handed out, and every so
+ * often a return sweeps the idle queue for them, so no evictor thread is
+ * needed.
+ */
+class BackendPool implements ObjectPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BackendPool.class);
+
+    private static final int IDLE = 0;
+
+    private static final int IN_USE = 1;
+
+    private static final int REMOVED = 2;
+
+    private final PoolableObjectFactory factory;
+
+    private final int maxIdle;
+
+    private final long maxWaitMillis;
+
+    private final long maxIdleTimeMillis;
+
+    private final Semaphore permits;
+
+    private final ConcurrentLinkedQueue<Entry> idle = new ConcurrentLinkedQueue<Entry>();
+
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+    private final AtomicInteger numIdle = new AtomicInteger();
+
+    private final AtomicInteger numActive = new AtomicInteger();
+
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final ThreadLocal<Entry> lastUsed;
+
+    private volatile boolean closed;
+
+    /**
+     * @param factory           makes, validates and destroys the pooled objects
+     * @param maxActive         max number of objects handed out at once, no limit if not positive
+     * @param maxIdle           max number of idle objects to keep around, no limit if negative
+     * @param maxWaitMillis     how long to wait for an object if maxActive are handed out
+     * @param maxIdleTimeMillis destroy objects that have been idle longer than this, never if not positive
+     * @param threadAffinity    if true, try to give a thread the object it used last
+     */
+    public BackendPool(final PoolableObjectFactory factory, final int maxActive, final int maxIdle,
+                       final long maxWaitMillis, final long maxIdleTimeMillis, final boolean threadAffinity) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+        this.permits = (maxActive > 0) ? new Semaphore(maxActive) : null;
+        this.lastUsed = threadAffinity ? new ThreadLocal<Entry>() : null;
+    }
+
+    public Object borrowObject() throws Exception {
+        assertOpen();
+
+        if ((permits != null) && !permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+            throw new NoSuchElementException("Timeout waiting for idle object");
+        }
+
+        try {
+            Entry entry = null;
+
+            if (lastUsed != null) {
+                Entry last = lastUsed.get();
+                if ((last != null) && last.state.compareAndSet(IDLE, IN_USE)) {
+                    numIdle.decrementAndGet();
+                    entry = checkIdle(last);
+                }
+            }
+
+            while (entry == null) {
+                Entry polled = idle.poll();
+                if (polled == null) {
+                    break;
+                }
+                polled.queued.set(false);
+
+                if (polled.state.compareAndSet(IDLE, IN_USE)) {
+                    numIdle.decrementAndGet();
+                    entry = checkIdle(polled);
+                }
+            }
+
+            if (entry == null) {
+                entry = new Entry(factory.makeObject());
+                entries.put(entry.object, entry);
+            }
+
+            if (lastUsed != null) {
+                lastUsed.set(entry);
+            }
+
+            numActive.incrementAndGet();
+            return entry.object;
+
+        } catch (Exception e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    public void returnObject(final Object obj) throws Exception {
+        Entry entry = entries.get(obj);
+        if (entry == null) {
+            // most likely borrowed from the pool we replaced on a reload
+            log.warn("returned object " + obj + " doesn't belong to this pool");
+            destroyForeign(obj);
+            return;
+        }
+        if (entry.state.get() != IN_USE) {
+            log.warn("returned object " + obj + " isn't in use");
+            return;
+        }
+
+        numActive.decrementAndGet();
+
+        boolean keep = !closed && ((maxIdle < 0) || (numIdle.get() < maxIdle));
+        if (keep) {
+            try {
+                factory.passivateObject(obj);
+            } catch (Exception e) {
+                keep = false;
+            }
+        }
+
+        if (keep) {
+            entry.idleSince = System.currentTimeMillis();
+            numIdle.incrementAndGet();
+            entry.state.set(IDLE);
+            if (entry.queued.compareAndSet(false, true)) {
+                idle.offer(entry);
+            }
+        } else {
+            destroy(entry);
+        }
+
+        // only let the next borrower in once the object is back in the idle set
+        if (permits != null) {
+            permits.release();
+        }
+
+        if (keep) {
+            sweepIfDue(entry.idleSince);
+        }
+    }
+
+    public void invalidateObject(final Object obj) throws Exception {
+        Entry entry = entries.get(obj);
+        if (entry == null) {
+            // most likely borrowed from the pool we replaced on a reload
+            log.warn("invalidated object " + obj + " doesn't belong to this pool");
+            destroyForeign(obj);
+            return;
+        }
+        if (entry.state.get() != IN_USE) {
+            log.warn("invalidated object " + obj + " isn't in use");
+            return;
+        }
+
+        numActive.decrementAndGet();
+        destroy(entry);
+
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    public void addObject() throws Exception {
+        assertOpen();
+
+        Entry entry = new Entry(factory.makeObject());
+        entries.put(entry.object, entry);
+
+        try {
+            factory.passivateObject(entry.object);
+        } catch (Exception e) {
+            destroy(entry);
+            return;
+        }
+
+        entry.idleSince = System.currentTimeMillis();
+        numIdle.incrementAndGet();
+        entry.state.set(IDLE);
+        entry.queued.set(true);
+        idle.offer(entry);
+    }
+
+    public int getNumIdle() {
+        return numIdle.get();
+    }
+
+    public int getNumActive() {
+        return numActive.get();
+    }
+
+    public void clear() {
+        Entry entry;
+        while ((entry = idle.poll()) != null) {
+            entry.queued.set(false);
+            if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                numIdle.decrementAndGet();
+                destroy(entry);
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * @deprecated as in ObjectPool. The factory is fixed at construction.
+     */
+    @Deprecated
+    public void setFactory(final PoolableObjectFactory factory) {
+        throw new IllegalStateException("the factory of a BackendPool is fixed at construction");
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new IllegalStateException("Pool not open");
+        }
+    }
+
+    /**
+     * We just took this entry out of the idle set. Make sure it's still
+     * worth handing out.
+     *
+     * @return the entry, or null if it had to be destroyed
+     */
+    private Entry checkIdle(final Entry entry) {
+        if ((maxIdleTimeMillis > 0) && (System.currentTimeMillis() - entry.idleSince > maxIdleTimeMillis)) {
+            destroy(entry);
+            return null;
+        }
+
+        try {
+            factory.activateObject(entry.object);
+            if (factory.validateObject(entry.object)) {
+                return entry;
+            }
+        } catch (Exception e) {
+            log.debug("problem activating pooled object", e);
+        }
+
+        destroy(entry);
+        return null;
+    }
+
+    /**
+     * Once every maxIdleTimeMillis, look through the idle objects and get
+     * rid of those that have been sitting there too long.
+     */
+    private void sweepIfDue(final long now) {
+        if (maxIdleTimeMillis <= 0) {
+            return;
+        }
+
+        long due = nextSweep.get();
+        if ((now < due) || !nextSweep.compareAndSet(due, now + maxIdleTimeMillis)) {
+            return;
+        }
+
+        for (Entry entry : idle) {
+            if ((now - entry.idleSince > maxIdleTimeMillis) && entry.state.compareAndSet(IDLE, IN_USE)) {
+                numIdle.decrementAndGet();
+                destroy(entry);
+            }
+        }
+    }
+
+    private void destroy(final Entry entry) {
+        entry.state.set(REMOVED);
+        entries.remove(entry.object);
+
+        try {
+            factory.destroyObject(entry.object);
+        } catch (Exception e) {
+            log.debug("problem destroying pooled object", e);
+        }
+    }
+
+    /**
+     * Get rid of an object we never handed out, so its connection doesn't
+     * leak.
+     */
+    private void destroyForeign(final Object obj) {
+        try {
+            factory.destroyObject(obj);
+        } catch (Exception e) {
+            log.debug("problem destroying foreign object", e);
+        }
+    }
+
+    private static class Entry {
+
+        final Object object;
+
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+
+        /* whether this entry is in the idle queue, so it never ends up there twice */
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        volatile long idleSince;
+
+        Entry(final Object object) {
+            this.object = object;
+        }
+    }
+}
@@ -1,41 +1,164 @@
 package com.guba.mogilefs;
 
 import org.apache.commons.pool.ObjectPool;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.impl.client.ContentEncodingHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
-import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
 
 public abstract class BaseMogileFSImpl implements MogileFS {
 
     private static final Logger log = LoggerFactory.getLogger(BaseMogileFSImpl.class);
 
+    /* don't use an observed hedge delay until we have this many samples */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    /* don't bother splitting batch lookups into chunks smaller than this */
+    private static final int MIN_BATCH_CHUNK = 16;
+
     private String domain;
 
     protected List<InetSocketAddress> trackers;
 
-    private ObjectPool cachedBackendPool;
+    /* latency and error statistics for the trackers, shared by all our Backends */
+    TrackerHealth trackerHealth;
+
+    private volatile ObjectPool cachedBackendPool;
 
     private int maxRetries = 2;
     private int retrySleepTime = 2000;
-    private int httpConnectionTimeout = 8 * 1000;
-    private int httpSocketTimeout = 60 * 1000;
+
+    /* when to try failed calls again, or null to wait retrySleepTime */
+    private volatile RetryPolicy retryPolicy;
+
+    /* bytes of an uploaded stream to keep in memory so it can be sent again, 0 to keep none */
+    private volatile int uploadBufferSize;
+
+    /* runs asynchronous uploads, created when first needed */
+    private ExecutorService uploadExecutor;
+
+    /* one permit for each upload that may be running or waiting to run */
+    private Semaphore uploadSlots;
+
+    private int asyncUploadThreads = 8;
+
+    private int asyncUploadQueueSize = 64;
+
+    /* how long close() waits for queued uploads to finish */
+    private volatile long uploadCloseTimeout = 60000;
+
+    /* set by close(), after which nothing is created anew */
+    private volatile boolean closed;
+
+    /* set by close(), after which no more uploads are taken */
+    private boolean closing;
+
+    /* options for the sockets to trackers and storage nodes, shared by all our Backends */
+    final SocketConfig socketConfig = new SocketConfig();
+
+    /* paths of recently read keys, null if path caching is off */
+    private volatile ExpiringLruCache<String[]> pathCache;
+
+    /* keys the tracker recently told us don't exist, null if that cache is off */
+    private volatile ExpiringLruCache<Boolean> missingKeyCache;
+
+    /* share one tracker request or download between concurrent calls for the same key */
+    private volatile boolean requestCoalescing;
+
+    private final SingleFlight<String[]> pathLookups = new SingleFlight<String[]>() {
+        @Override
+        protected String[] copy(final String[] value) {
+            return (value == null) ? null : value.clone();
+        }
+    };
+
+    private final SingleFlight<byte[]> byteFetches = new SingleFlight<byte[]>() {
+        @Override
+        protected byte[] copy(final byte[] value) {
+            return (value == null) ? null : value.clone();
+        }
+    };
+
+    /* how many tracker connections a batch lookup may use at once */
+    private volatile int batchParallelism = 1;
+
+    /* keep-alive connections to the storage nodes, created when first needed */
+    private ThreadSafeClientConnManager storageConnManager;
+
+    private HttpClient storageClient;
+
+    private int maxStorageConnectionsPerHost = 16;
+
+    private int maxStorageConnections = 128;
+
+    /* runs work in the background for calls that use more than one connection */
+    private ExecutorService workerExecutor;
+
+    /* ask a second storage node if the first hasn't answered after this many milliseconds, 0 for never */
+    private volatile long hedgeDelay;
+
+    /* use the 95th percentile of recent storage node response times as hedge delay */
+    private volatile boolean adaptiveHedgeDelay;
+
+    /* getFile downloads files in pieces of this many bytes from all replicas at once, 0 for off */
+    private volatile long downloadSegmentSize;
+
+    /* max number of pieces of one file getFile downloads at once */
+    private volatile int downloadParallelism = 4;
+
+    /* size of the chunks big files are split into */
+    private volatile long bigFileChunkSize = 64 * 1024 * 1024;
+
+    /* how many chunks of a big file we upload or fetch at once */
+    private volatile int bigFileParallelism = 4;
+
+    /* how long storage nodes took to answer our last GETs */
+    private final LatencySampler readLatencies = new LatencySampler(128);
 
     /* Should we preserve the order of paths that we get from the server. */
     private boolean keepPathOrder;
@@ -101,12 +224,94 @@ public abstract class BaseMogileFSImpl implements MogileFS {
         reload(domain);
     }
 
+    /**
+     * Close the connections to the trackers and the storage nodes, and stop
+     * any background threads. Uploads that were already handed to
+     * storeStreamAsync or storeFileAsync get up to a minute (see
+     * setUploadCloseTimeout) to finish first. Don't use this object after
+     * closing it.
+     */
+    public void close() {
+        ExecutorService uploads;
+
+        synchronized (this) {
+            closing = true;
+            uploads = uploadExecutor;
+            uploadExecutor = null;
+            uploadSlots = null;
+        }
+
+        if (uploads != null) {
+            // the uploads still need the connections, so they go first
+            uploads.shutdown();
+            try {
+                if (!uploads.awaitTermination(uploadCloseTimeout, TimeUnit.MILLISECONDS)) {
+                    log.warn("giving up on uploads that didn't finish in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Runnable never : uploads.shutdownNow()) {
+                ((UploadTask) never).abandon();
+            }
+        }
+
+        ObjectPool pool;
+        ThreadSafeClientConnManager connManager;
+        ExecutorService executor;
+
+        synchronized (this) {
+            closed = true;
+
+            pool = cachedBackendPool;
+            cachedBackendPool = null;
+
+            connManager = storageConnManager;
+            storageConnManager = null;
+            storageClient = null;
+
+            executor = workerExecutor;
+            workerExecutor = null;
+        }
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (pool != null) {
+            try {
+                pool.close();
+            } catch (Exception e) {
+                log.warn("problem closing tracker connections", e);
+            }
+        }
+        if (connManager != null) {
+            connManager.shutdown();
+        }
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new IllegalStateException("this MogileFS client has been closed");
+        }
+    }
+
     /**
      * This is called whenever we get a new domain or set of trackers to connect to.
      */
 
     protected void reload(final String domain) throws NoTrackersException {
         this.domain = domain;
+        this.trackerHealth = new TrackerHealth(trackers);
+
+        // cached paths belong to the old domain
+        ExpiringLruCache<String[]> paths = pathCache;
+        if (paths != null) {
+            paths.clear();
+        }
+        ExpiringLruCache<Boolean> missing = missingKeyCache;
+        if (missing != null) {
+            missing.clear();
+        }
 
         // make sure this is rebuilt when we next request it
         cachedBackendPool = null;
@@ -115,13 +320,20 @@ public abstract class BaseMogileFSImpl implements MogileFS {
     protected abstract ObjectPool buildBackendPool();
 
     protected ObjectPool getBackendPool() {
-        if (cachedBackendPool != null) {
-            return cachedBackendPool;
+        ObjectPool pool = cachedBackendPool;
+        if (pool != null) {
+            return pool;
         }
 
-        cachedBackendPool = buildBackendPool();
+        // only take the lock while the pool is being built
+        synchronized (this) {
+            assertOpen();
+            if (cachedBackendPool == null) {
+                cachedBackendPool = buildBackendPool();
+            }
 
-        return cachedBackendPool;
+            return cachedBackendPool;
+        }
     }
 
     /**
@@ -136,6 +348,8 @@ public abstract class BaseMogileFSImpl implements MogileFS {
      */
     public OutputStream newFile(final String key, final String storageClass, final long byteCount)
             throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException {
+        invalidatePaths(key);
+
         Backend backend = null;
 
         try {
@@ -143,30 +357,48 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             backend = borrowBackend();
 
             Map<String, String> response = backend.doRequest("create_open", new String[]{
-                    "domain", domain, "class", storageClass, "key", key});
+                    "domain", domain, "class", storageClass, "key", key, "multi_dest", "1"});
 
             if (response == null) {
                 throw new TrackerCommunicationException(backend.getLastErr() + ", " + backend.getLastErrStr());
             }
 
-            if ((response.get("path") == null) || (response.get("fid") == null)) {
+            List<String[]> destinations = getDestinations(response);
+            if (destinations.isEmpty() || (response.get("fid") == null)) {
                 throw new TrackerCommunicationException("create_open response from tracker " + backend.getTracker() +
                         " missing fid or path (err:" + backend.getLastErr() + ", " + backend.getLastErrStr() + ")");
             }
 
-            try {
-                return new MogileOutputStream(getBackendPool(), domain, response.get("fid"), response.get("path"),
-                        response.get("devid"), key,
-                        byteCount);
+            // nothing has been written yet, so we can move on to the next
+            // destination if a storage node won't talk to us
+            StorageCommunicationException lastError = null;
+            for (String[] destination : destinations) {
+                try {
+                    return new MogileOutputStream(getBackendPool(), socketConfig, domain, response.get("fid"),
+                            destination[1], destination[0], key, byteCount) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+
+                            // a read while we were writing may have cached that the key doesn't exist
+                            invalidatePaths(key);
+                        }
+                    };
 
-            } catch (MalformedURLException e) {
-                // hrmm.. this shouldn't happen - we'll blame it on the tracker
-                log.warn("error trying to store file with malformed url: " + response.get("path"));
-                throw new TrackerCommunicationException(
-                        "error trying to store file with malformed url: " + response.get("path"));
+                } catch (MalformedURLException e) {
+                    // hrmm.. this shouldn't happen - we'll blame it on the tracker
+                    log.warn("error trying to store file with malformed url: " + destination[1]);
+                    throw new TrackerCommunicationException(
+                            "error trying to store file with malformed url: " + destination[1]);
 
+                } catch (StorageCommunicationException e) {
+                    log.warn("problem connecting to " + destination[1] + ", trying the next destination", e);
+                    lastError = e;
+                }
             }
 
+            throw lastError;
+
         } catch (TrackerCommunicationException e) {
             // lets nuke this backend connection and make a new one
             if (backend != null) {
@@ -184,12 +416,184 @@ public abstract class BaseMogileFSImpl implements MogileFS {
         }
     }
 
+    /**
+     * Return the socket options used for talking to the trackers and the
+     * storage nodes. Changes to it are picked up by connections opened
+     * afterwards, and per-command timeouts apply to the next request.
+     *
+     * @return the live socket configuration of this client
+     */
+    public SocketConfig getSocketConfig() {
+        return socketConfig;
+    }
+
     public void setHttpConnectionTimeout(int httpConnectionTimeout) {
-        this.httpConnectionTimeout = httpConnectionTimeout;
+        socketConfig.setStorageConnectTimeout(httpConnectionTimeout);
     }
 
     public void setHttpSocketTimeout(int httpSocketTimeout) {
-        this.httpSocketTimeout = httpSocketTimeout;
+        socketConfig.setStorageSoTimeout(httpSocketTimeout);
+    }
+
+    /**
+     * Cache the paths of keys that are read with getFile, getFileBytes or
+     * getFileStream, so hot keys don't need a trip to the tracker every
+     * time. Paths are kept for at most ttlMillis, and only the maxEntries
+     * most recently used keys are kept. Deleting, renaming or storing a key
+     * through this client drops its paths, but changes made by other
+     * clients only show up once the entry expires. Paths looked up with
+     * noverify aren't cached. A maxEntries of 0 turns the cache off, which
+     * is the default.
+     *
+     * @param maxEntries max number of keys to cache paths for
+     * @param ttlMillis  how long cached paths are used, in milliseconds
+     */
+    public void setPathCache(final int maxEntries, final long ttlMillis) {
+        pathCache = ((maxEntries > 0) && (ttlMillis > 0))
+                ? new ExpiringLruCache<String[]>(maxEntries, ttlMillis) : null;
+    }
+
+    /**
+     * @return number of reads that found their paths in the path cache
+     */
+    public long getPathCacheHits() {
+        ExpiringLruCache<String[]> paths = pathCache;
+        return (paths == null) ? 0 : paths.getHits();
+    }
+
+    /**
+     * @return number of reads that had to ask a tracker for their paths
+     *         while the path cache was on
+     */
+    public long getPathCacheMisses() {
+        ExpiringLruCache<String[]> paths = pathCache;
+        return (paths == null) ? 0 : paths.getMisses();
+    }
+
+    /**
+     * Remember keys that the tracker said don't exist, so that reading them
+     * again with getFile, getFileBytes or getFileStream returns null right
+     * away for up to ttlMillis instead of asking the tracker again. Storing
+     * or renaming to a key through this client forgets that it was missing,
+     * but keys stored by other clients stay missing until the entry
+     * expires, so keep the TTL short. A maxEntries of 0 turns this off,
+     * which is the default.
+     *
+     * @param maxEntries max number of missing keys to remember
+     * @param ttlMillis  how long to remember a missing key, in milliseconds
+     */
+    public void setMissingKeyCache(final int maxEntries, final long ttlMillis) {
+        missingKeyCache = ((maxEntries > 0) && (ttlMillis > 0))
+                ? new ExpiringLruCache<Boolean>(maxEntries, ttlMillis) : null;
+    }
+
+    /**
+     * @return number of reads that were answered from the missing key cache
+     */
+    public long getMissingKeyCacheHits() {
+        ExpiringLruCache<Boolean> missing = missingKeyCache;
+        return (missing == null) ? 0 : missing.getHits();
+    }
+
+    /**
+     * If true, concurrent getPaths calls for the same key share one tracker
+     * request, and concurrent getFileBytes calls for the same key share one
+     * download, instead of each thread doing its own. Every caller still
+     * gets its own copy of the result. This keeps a burst of requests for
+     * one popular key from hitting the trackers and storage nodes all at
+     * once. Defaults to false.
+     *
+     * @param requestCoalescing
+     */
+    public void setRequestCoalescing(final boolean requestCoalescing) {
+        this.requestCoalescing = requestCoalescing;
+    }
+
+    /**
+     * Split batch path lookups over at most this many tracker connections,
+     * which are used at the same time. Defaults to 1, which does the whole
+     * batch on one connection in the calling thread.
+     *
+     * @param batchParallelism
+     */
+    public void setBatchParallelism(final int batchParallelism) {
+        this.batchParallelism = Math.max(1, batchParallelism);
+    }
+
+    /**
+     * Hedge reads: if the storage node a read goes to hasn't sent back
+     * response headers after this many milliseconds, send the same GET to
+     * another storage node that has the file, use whichever answers first
+     * and drop the other one. This keeps one slow storage node from holding
+     * up reads for the full socket timeout, at the cost of some duplicate
+     * requests. 0 (the default) turns hedging off.
+     *
+     * @param hedgeDelay
+     */
+    public void setHedgeDelay(final long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * If true and hedging is on, hedge reads after the 95th percentile of
+     * the time recent reads took to get response headers, instead of the
+     * fixed hedge delay. The fixed delay is still used until we've seen
+     * enough reads. Defaults to false.
+     *
+     * @param adaptiveHedgeDelay
+     */
+    public void setAdaptiveHedgeDelay(final boolean adaptiveHedgeDelay) {
+        this.adaptiveHedgeDelay = adaptiveHedgeDelay;
+    }
+
+    /**
+     * Make getFile download files in segments of this many bytes, several
+     * at once and spread over all storage nodes that have the file, instead
+     * of in one stream from one storage node. A segment that fails is
+     * retried on the other storage nodes. This is much faster for big files,
+     * but needs storage nodes that do range requests. 0 (the default) turns
+     * this off.
+     *
+     * @param downloadSegmentSize
+     */
+    public void setDownloadSegmentSize(final long downloadSegmentSize) {
+        this.downloadSegmentSize = downloadSegmentSize;
+    }
+
+    /**
+     * Download at most this many segments of a file at once. Defaults to 4.
+     *
+     * @param downloadParallelism
+     * @see #setDownloadSegmentSize(long)
+     */
+    public void setDownloadParallelism(final int downloadParallelism) {
+        this.downloadParallelism = Math.max(1, downloadParallelism);
+    }
+
+    /**
+     * Keep at most this many connections to any one storage node in the
+     * pool of connections reads go through. Defaults to 16.
+     *
+     * @param maxStorageConnectionsPerHost
+     */
+    public synchronized void setMaxStorageConnectionsPerHost(final int maxStorageConnectionsPerHost) {
+        this.maxStorageConnectionsPerHost = maxStorageConnectionsPerHost;
+        if (storageConnManager != null) {
+            storageConnManager.setDefaultMaxPerRoute(maxStorageConnectionsPerHost);
+        }
+    }
+
+    /**
+     * Keep at most this many connections to storage nodes in total in the
+     * pool of connections reads go through. Defaults to 128.
+     *
+     * @param maxStorageConnections
+     */
+    public synchronized void setMaxStorageConnections(final int maxStorageConnections) {
+        this.maxStorageConnections = maxStorageConnections;
+        if (storageConnManager != null) {
+            storageConnManager.setMaxTotal(maxStorageConnections);
+        }
     }
 
     /**
@@ -213,6 +617,36 @@ public abstract class BaseMogileFSImpl implements MogileFS {
         this.retrySleepTime = retrySleepTime;
     }
 
+    /**
+     * Decide when to try failed calls to the trackers again with the given
+     * policy, instead of waiting the fixed retry timeout between attempts.
+     * The max retries still limit the number of attempts. Pass null to go
+     * back to the fixed retry timeout.
+     *
+     * @param retryPolicy
+     * @see ExponentialBackoffRetryPolicy
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+
+    /**
+     * Keep a copy of each stream given to storeStream as it's sent, so a
+     * failed upload can be sent again to another storage node or on the
+     * next attempt. Up to the given number of bytes are kept in memory, the
+     * rest goes to a temp file. Defaults to 0, which keeps no copy: a stream
+     * is then only tried again if nothing had been read from it yet.
+     * Doesn't affect storeFile, which can always read the file again.
+     *
+     * @param bufferSize bytes to keep in memory per upload, 0 to keep no copy
+     */
+    public void setUploadBufferSize(final int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("buffer size can't be negative: " + bufferSize);
+        }
+        this.uploadBufferSize = bufferSize;
+    }
 
     public MogileResponse storeStream(final String key, final String storageClass, final InputStream is)
             throws MogileException {
@@ -223,183 +657,1163 @@ public abstract class BaseMogileFSImpl implements MogileFS {
     public MogileResponse storeStream(final String key, final String storageClass, final InputStream is,
                                       final long fileSize)
             throws MogileException {
-        int attempt = 1;
+        int bufferSize = uploadBufferSize;
+        UploadSource source = (bufferSize > 0) ? UploadSource.forBufferedStream(is, fileSize, bufferSize)
+                : UploadSource.forStream(is, fileSize);
+        try {
+            return store(key, storageClass, source);
+        } finally {
+            source.close();
+        }
+    }
 
-        Backend backend = null;
+    public MogileResponse storeFile(final String key, final String storageClass, final File file) throws MogileException {
+        if (!file.canRead()) {
+            log.warn("error trying to store file: can't read " + file);
+            throw new MogileException("Unable to store file on mogile");
+        }
 
-        while ((maxRetries == -1) || (attempt++ <= maxRetries)) {
-            try {
-                backend = borrowBackend();
+        UploadSource source = UploadSource.forFile(file);
+        try {
+            return store(key, storageClass, source);
+        } finally {
+            source.close();
+        }
+    }
 
-                Map<String, String> response = backend.doRequest("create_open", new String[]{
-                        "domain", domain, "class", storageClass, "key", key});
+    /**
+     * Set how many asynchronous uploads run at once, and how many more may
+     * wait for their turn. Once that many are waiting, storeStreamAsync and
+     * storeFileAsync block until there's room again, so a producer can't
+     * get too far ahead of the storage nodes. Defaults to 8 threads and 64
+     * waiting. Takes effect the first time an asynchronous upload is
+     * started.
+     *
+     * @param threads   uploads to run at once
+     * @param queueSize uploads to keep waiting
+     */
+    public synchronized void setAsyncUploadLimits(final int threads, final int queueSize) {
+        if ((threads < 1) || (queueSize < 0)) {
+            throw new IllegalArgumentException("bad async upload limits: " + threads + " threads, queue of "
+                    + queueSize);
+        }
+        this.asyncUploadThreads = threads;
+        this.asyncUploadQueueSize = queueSize;
+    }
 
-                if (response == null) {
-                    log.warn("problem talking to backend: " + backend.getLastErrStr() + " (err: "
-                            + backend.getLastErr() + ")");
+    /**
+     * Set how long close() waits for asynchronous uploads to finish before
+     * giving up on them, in milliseconds. Uploads that haven't started by
+     * then fail with a MogileException. Defaults to a minute.
+     *
+     * @param uploadCloseTimeout
+     */
+    public void setUploadCloseTimeout(final long uploadCloseTimeout) {
+        this.uploadCloseTimeout = uploadCloseTimeout;
+    }
 
-                } else {
-                    try {
-                        String path = response.get("path");
-                        String fid = response.get("fid");
-                        String devid = response.get("devid");
+    /**
+     * Store the stream in the background, like storeStream does. The
+     * stream belongs to the upload from now on and is closed when it's
+     * done, or when the upload is given up on before it started, like
+     * when the client is closed first. This blocks while the upload queue
+     * is full.
+     *
+     * @param callback told how the upload went, or null
+     * @return the result of the upload, which fails with the MogileException
+     *         storeStream would have thrown
+     * @throws MogileException if we were interrupted waiting for room in
+     *                         the queue, or the client has been closed
+     */
+    public Future<MogileResponse> storeStreamAsync(final String key, final String storageClass,
+                                                   final InputStream is, final long fileSize,
+                                                   final UploadCallback callback) throws MogileException {
+        return submitUpload(new AsyncUpload(key, callback) {
+            @Override
+            MogileResponse store() throws MogileException {
+                return storeStream(key, storageClass, is, fileSize);
+            }
 
-                        MogileResponse mResp = new MogileResponse();
-                        mResp.setDevid(devid);
-                        mResp.setFid(fid);
-                        mResp.setPath(path);
+            @Override
+            void abandoned() {
+                UploadSource.closeQuietly(is);
+            }
+        });
+    }
 
-                        HttpParams httpParameters = new BasicHttpParams();
-                        HttpConnectionParams.setConnectionTimeout(httpParameters, httpConnectionTimeout);
-                        HttpConnectionParams.setSoTimeout(httpParameters, httpSocketTimeout);
+    /**
+     * Store the file in the background, like storeFile does. This blocks
+     * while the upload queue is full.
+     *
+     * @param callback told how the upload went, or null
+     * @return the result of the upload, which fails with the MogileException
+     *         storeFile would have thrown
+     * @throws MogileException if we were interrupted waiting for room in
+     *                         the queue, or the client has been closed
+     */
+    public Future<MogileResponse> storeFileAsync(final String key, final String storageClass, final File file,
+                                                 final UploadCallback callback) throws MogileException {
+        return submitUpload(new AsyncUpload(key, callback) {
+            @Override
+            MogileResponse store() throws MogileException {
+                return storeFile(key, storageClass, file);
+            }
+        });
+    }
 
-                        HttpClient client = new ContentEncodingHttpClient(httpParameters);
-                        HttpPut putReq = new HttpPut(path);
-                        MogileStreamEntity ent = new MogileStreamEntity(is, fileSize);
+    private Future<MogileResponse> submitUpload(final AsyncUpload upload) throws MogileException {
+        ExecutorService executor;
+        Semaphore slots;
+        synchronized (this) {
+            if (closing) {
+                upload.abandoned();
+                throw new MogileException("can't upload " + upload.key + ", the client has been closed");
+            }
+            if (uploadExecutor == null) {
+                uploadExecutor = new ThreadPoolExecutor(asyncUploadThreads, asyncUploadThreads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "mogilefs-upload-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                ((ThreadPoolExecutor) uploadExecutor).allowCoreThreadTimeOut(true);
+                uploadSlots = new Semaphore(asyncUploadThreads + asyncUploadQueueSize);
+            }
+            executor = uploadExecutor;
+            slots = uploadSlots;
+        }
 
-                        putReq.setEntity(ent);
-                        client.execute(putReq);
-                        
-                        is.close();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            upload.abandoned();
+            throw new MogileException("interrupted while waiting to upload " + upload.key);
+        }
 
-                        Map<String, String> closeResponse = backend.doRequest("create_close", new String[]{
-                                "fid", fid, "devid", devid, "domain", domain, "size",
-                                Long.toString(ent.getBytesSent()), "key", key, "path", path});
+        upload.slots = slots;
+        try {
+            UploadTask task = new UploadTask(upload);
+            executor.execute(task);
+            return task;
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            upload.abandoned();
+            throw new MogileException("can't upload " + upload.key + ", the client has been closed", e);
+        }
+    }
 
-                        mResp.setFileSize(ent.getBytesSent());
+    /**
+     * An upload running in the background, which gives back its place in
+     * the queue when it's done.
+     */
+    private abstract static class AsyncUpload implements Callable<MogileResponse> {
 
-                        if (closeResponse == null) {
-                            throw new IOException(backend.getLastErrStr());
-                        }
+        final String key;
 
-                        // success!
-                        return mResp;
+        private final UploadCallback callback;
 
-                    } catch (MalformedURLException e) {
-                        // hrmm.. this shouldn't happen - we'll blame it on the tracker
-                        log.warn("error trying to retrieve file with malformed url: " + response.get("path"));
+        volatile Semaphore slots;
 
-                    } catch (IOException e) {
-                        log.warn("error trying to store file", e);
-                    }
+        AsyncUpload(final String key, final UploadCallback callback) {
+            this.key = key;
+            this.callback = callback;
+        }
 
-                }
+        abstract MogileResponse store() throws MogileException;
 
-            } catch (Exception e) {
-                log.warn("problem trying to store file on mogile", e);
+        /**
+         * The upload won't run, let go of what it was given.
+         */
+        void abandoned() {
+        }
 
-                // something went wrong - get rid of the Backend object
-                if (backend != null) {
-                    invalidateBackend(backend);
-                    backend = null;
+        public MogileResponse call() throws MogileException {
+            try {
+                MogileResponse response;
+                try {
+                    response = store();
+                } catch (Throwable t) {
+                    // whatever went wrong, the callback has to hear about it
+                    MogileException e = (t instanceof MogileException) ? (MogileException) t
+                            : new MogileException("problem uploading " + key, t);
+                    failed(e);
+                    throw e;
                 }
 
-            } finally {
-                // make sure if we've still got a backend object that
-                // we return it to the pool
-                if (backend != null) {
-                    returnBackend(backend);
+                if (callback != null) {
+                    callback.uploaded(key, response);
                 }
+                return response;
+
+            } finally {
+                slots.release();
             }
+        }
 
-            // wait a little while before continuing
-            retrySleep();
+        void failed(final MogileException e) {
+            if (callback != null) {
+                callback.failed(key, e);
+            }
+        }
+    }
+
+    /**
+     * The Future of an AsyncUpload, which can tell the callback if the
+     * upload never got to run.
+     */
+    private static class UploadTask extends FutureTask<MogileResponse> {
 
-            log.info("Error storing file to mogile - attempting to reconnect and try again (attempt #" + attempt + ")");
+        private final AsyncUpload upload;
+
+        UploadTask(final AsyncUpload upload) {
+            super(upload);
+            this.upload = upload;
         }
 
-        throw new MogileException("Unable to store file on mogile after multiple attempts");
+        /**
+         * The client was closed before this upload got its turn.
+         */
+        void abandon() {
+            if (cancel(false)) {
+                upload.abandoned();
+                upload.failed(new MogileException("can't upload " + upload.key + ", the client has been closed"));
+            }
+        }
+    }
+
+    /**
+     * Set the size of the chunks storeBigFile splits files into. Defaults
+     * to 64MB, like the Perl mogtool.
+     *
+     * @param chunkSize
+     */
+    public void setBigFileChunkSize(final long chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.bigFileChunkSize = chunkSize;
     }
 
-    public MogileResponse storeFile(final String key, final String storageClass, final File file) throws MogileException {
-        try {
-            FileInputStream in = new FileInputStream(file);
-            return storeStream(key, storageClass, in, file.length());
-        } catch (IOException e) {
-            log.warn("error trying to store file", e);
+    /**
+     * Set how many chunks of a big file are uploaded or fetched at once.
+     * Reading a big file keeps this many chunks in memory. Defaults to 4.
+     *
+     * @param parallelism
+     */
+    public void setBigFileParallelism(final int parallelism) {
+        this.bigFileParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Store a big file in chunks, the way the Perl mogtool does with
+     * --bigfile, so it can be read back by either. Each chunk is stored
+     * under 'key,N' and several are uploaded at once, so they end up spread
+     * over the storage nodes. The manifest listing the chunks is stored
+     * under '_big_info:key' once they're all in.
+     *
+     * @param key
+     * @param storageClass
+     * @param file
+     * @throws MogileException if a chunk or the manifest couldn't be stored
+     */
+    public void storeBigFile(final String key, final String storageClass, final File file) throws MogileException {
+        if (!file.canRead()) {
+            log.warn("error trying to store big file: can't read " + file);
+            throw new MogileException("Unable to store file on mogile");
+        }
+
+        final long chunkSize = bigFileChunkSize;
+        final long size = file.length();
+        final int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+
+        // tells mogtool there's an upload going on
+        storeBytes(BigFileInfo.PRE_PREFIX + key, storageClass, toBytes("starttime:" + System.currentTimeMillis() / 1000));
+
+        final BigFileInfo info = new BigFileInfo(chunks);
+        info.setSize(size);
+        info.setFilename(file.getPath());
+
+        final AtomicInteger nextChunk = new AtomicInteger(1);
+        final AtomicReference<MogileException> failure = new AtomicReference<MogileException>();
+
+        // chunks are picked up by whichever thread is free
+        Runnable worker = new Runnable() {
+            public void run() {
+                int chunk;
+                while ((failure.get() == null) && ((chunk = nextChunk.getAndIncrement()) <= chunks)) {
+                    long offset = (chunk - 1) * chunkSize;
+                    UploadSource.FileRangeSource source = UploadSource.forFileRange(file, offset,
+                            Math.min(chunkSize, size - offset));
+                    try {
+                        MogileResponse response = store(BigFileInfo.chunkKey(key, chunk), storageClass, source);
+                        info.setChunk(chunk, response.getFileSize(), source.getMd5(),
+                                new String[]{response.getPath()});
+                    } catch (MogileException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        source.close();
+                    }
+                }
+            }
+        };
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 1; i < Math.min(bigFileParallelism, chunks); i++) {
+            workers.add(getWorkerExecutor().submit(worker));
+        }
+
+        worker.run();
+
+        for (Future<?> future : workers) {
+            try {
+                getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                log.warn("problem storing chunks of " + key, e.getCause());
+                failure.compareAndSet(null, new MogileException("Unable to store big file on mogile", e.getCause()));
+            }
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        // list every replica of the chunks, not just the one we stored
+        List<String> chunkKeys = new ArrayList<String>(chunks);
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            chunkKeys.add(BigFileInfo.chunkKey(key, chunk));
+        }
+        Map<String, PathLookupResult> found = getPaths(chunkKeys, true);
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            PathLookupResult result = found.get(BigFileInfo.chunkKey(key, chunk));
+            if ((result != null) && result.isFound() && (result.getPaths().length > 0)) {
+                info.setChunkPaths(chunk, result.getPaths());
+            }
+        }
+
+        storeBytes(BigFileInfo.INFO_PREFIX + key, storageClass, info.toBytes());
+
+        try {
+            delete(BigFileInfo.PRE_PREFIX + key);
+        } catch (NoTrackersException e) {
+            log.warn("unable to delete " + BigFileInfo.PRE_PREFIX + key + " after storing big file");
+        }
+    }
+
+    /**
+     * Read a big file stored by storeBigFile or the Perl mogtool. Chunks
+     * are fetched ahead of the reader, up to bigFileParallelism at once,
+     * and each is checked against the size and MD5 in the manifest.
+     * Compressed big files are uncompressed. Return null if there's no big
+     * file with this key.
+     *
+     * @param key
+     * @return the content of the big file
+     * @throws IOException if the manifest doesn't make sense
+     */
+    public InputStream getBigFileStream(final String key)
+            throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException, IOException {
+        byte[] manifest = getFileBytes(BigFileInfo.INFO_PREFIX + key);
+        if (manifest == null) {
+            return null;
+        }
+
+        BigFileInfo info = BigFileInfo.parse(manifest);
+        InputStream in = new BigFileInputStream(this, key, info, bigFileParallelism);
+
+        // mogtool compresses with zlib before splitting the file up
+        return info.isCompressed() ? new InflaterInputStream(in) : in;
+    }
+
+    private void storeBytes(final String key, final String storageClass, final byte[] bytes) throws MogileException {
+        UploadSource source = UploadSource.forBufferedStream(new ByteArrayInputStream(bytes), bytes.length,
+                bytes.length);
+        try {
+            store(key, storageClass, source);
+        } finally {
+            source.close();
+        }
+    }
+
+    private static byte[] toBytes(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Store the content of the given source. We ask the tracker for several
+     * destinations at once, and if a storage node fails we move right on to
+     * the next one, as long as the content can be sent again.
+     */
+    private MogileResponse store(final String key, final String storageClass, final UploadSource source)
+            throws MogileException {
+        invalidatePaths(key);
+
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
+
+        Backend backend = null;
+
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
+            try {
+                backend = borrowBackend();
+
+                Map<String, String> response = backend.doRequest("create_open", new String[]{
+                        "domain", domain, "class", storageClass, "key", key, "multi_dest", "1"});
+
+                if (response == null) {
+                    log.warn("problem talking to backend: " + backend.getLastErrStr() + " (err: "
+                            + backend.getLastErr() + ")");
+
+                } else {
+                    String fid = response.get("fid");
+                    List<String[]> destinations = getDestinations(response);
+                    if (destinations.isEmpty()) {
+                        log.warn("create_open response from tracker " + backend.getTracker() + " is missing a path");
+                    }
+
+                    for (String[] destination : destinations) {
+                        String devid = destination[0];
+                        String path = destination[1];
+
+                        if (!source.canReplay()) {
+                            break;
+                        }
+
+                        long bytesSent;
+                        try {
+                            bytesSent = put(path, source);
+
+                        } catch (IOException e) {
+                            log.warn("error trying to store file to " + path, e);
+                            continue;
+
+                        } catch (RuntimeException e) {
+                            // HttpClient throws these for bad URLs - we'll blame it on the tracker
+                            log.warn("error trying to store file to " + path, e);
+                            continue;
+                        }
+
+                        Map<String, String> closeResponse = backend.doRequest("create_close", new String[]{
+                                "fid", fid, "devid", devid, "domain", domain, "size",
+                                Long.toString(bytesSent), "key", key, "path", path});
+
+                        if (closeResponse == null) {
+                            log.warn("problem closing file on tracker: " + backend.getLastErrStr() + " (err: "
+                                    + backend.getLastErr() + ")");
+                            break;
+                        }
+
+                        // a read while we were uploading may have cached that the key doesn't exist
+                        invalidatePaths(key);
+
+                        // success!
+                        MogileResponse mResp = new MogileResponse();
+                        mResp.setDevid(devid);
+                        mResp.setFid(fid);
+                        mResp.setPath(path);
+                        mResp.setFileSize(bytesSent);
+                        return mResp;
+                    }
+                }
+
+            } catch (Exception e) {
+                log.warn("problem trying to store file on mogile", e);
+
+                // something went wrong - get rid of the Backend object
+                if (backend != null) {
+                    invalidateBackend(backend);
+                    backend = null;
+                }
+
+            } finally {
+                // make sure if we've still got a backend object that
+                // we return it to the pool
+                if (backend != null) {
+                    returnBackend(backend);
+                    backend = null;
+                }
+            }
+
+            if (!source.canReplay()) {
+                throw new MogileException("Unable to store file on mogile: the stream was partly sent and can't be sent again");
+            }
+
+            // wait a little while before continuing
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
+            }
+
+            log.info("Error storing file to mogile - attempting to reconnect and try again (attempt #"
+                    + (failedAttempts + 1) + ")");
+        }
+
+        throw new MogileException("Unable to store file on mogile after multiple attempts");
+    }
+
+    /**
+     * Return the devid and path of each place the tracker told us to store
+     * a new file at, in the order we should try them. Trackers that don't
+     * know about multiple destinations just give us one.
+     */
+    static List<String[]> getDestinations(final Map<String, String> response) {
+        List<String[]> destinations = new ArrayList<String[]>();
+
+        String devCount = response.get("dev_count");
+        if (devCount != null) {
+            int count;
+            try {
+                count = Integer.parseInt(devCount);
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            for (int i = 1; i <= count; i++) {
+                String path = response.get("path_" + i);
+                if (path != null) {
+                    destinations.add(new String[]{response.get("devid_" + i), path});
+                }
+            }
+        }
+
+        if (destinations.isEmpty() && (response.get("path") != null)) {
+            destinations.add(new String[]{response.get("devid"), response.get("path")});
+        }
+
+        return destinations;
+    }
+
+    /**
+     * PUT the content of the source to a storage node.
+     *
+     * @return the number of bytes sent
+     */
+    private long put(final String path, final UploadSource source) throws IOException {
+        HttpPut putReq = new HttpPut(path);
+        // set per request, so changes to the config apply to the long-lived client too
+        HttpConnectionParams.setConnectionTimeout(putReq.getParams(), socketConfig.getStorageConnectTimeout());
+        HttpConnectionParams.setSoTimeout(putReq.getParams(), socketConfig.getStorageSoTimeout());
+        MogileStreamEntity ent = new MogileStreamEntity(source.open(), source.getLength());
+        putReq.setEntity(ent);
+
+        HttpResponse putResponse;
+        try {
+            putResponse = getStorageClient().execute(putReq);
+        } catch (IOException e) {
+            putReq.abort();
+            throw e;
+        }
+
+        int status = putResponse.getStatusLine().getStatusCode();
+        // read whatever came back, so the connection can be used again
+        EntityUtils.consume(putResponse.getEntity());
+
+        if ((status < 200) || (status > 299)) {
+            throw new IOException("storage node answered " + status + " for " + path);
+        }
+
+        return ent.getBytesSent();
+    }
+
+    /**
+     * Read in an file and store it in the provided file. Return
+     * the reference to the file, or null if we couldn't find the
+     * object with the given key
+     *
+     * @param key
+     * @param destination
+     * @throws NoTrackersException
+     * @throws TrackerCommunicationException
+     */
+    public File getFile(final String key, final File destination)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        String[] paths = getReadPaths(key);
+        if (paths == null) {
+            return null;
+        }
+
+        long segmentSize = downloadSegmentSize;
+        if ((segmentSize > 0) && getFileSegmented(key, paths, destination, segmentSize)) {
+            return destination;
+        }
+
+        long written;
+        boolean done = false;
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            written = download(key, paths, out.getChannel());
+            done = true;
+        } finally {
+            out.close();
+            if (!done) {
+                // don't leave part of the file behind
+                destination.delete();
+            }
+        }
+
+        if (written < 0) {
+            // every storage node said it doesn't have the file
+            destination.delete();
+            return null;
+        }
+
+        return destination;
+    }
+
+    /**
+     * Download a file straight into a channel, like a FileChannel or the
+     * channel of a servlet response. The bytes go from the storage node's
+     * socket to the channel through a direct buffer, without being copied
+     * onto the heap. If a storage node fails before anything was written,
+     * or the destination is a FileChannel we can rewind, the next storage
+     * node is tried.
+     * <p/>
+     * Each download makes its own HTTP/1.0 connection, so this doesn't get
+     * the pooled keep-alive connections (setMaxStorageConnectionsPerHost)
+     * or the hedged reads (setHedgeDelay) the stream and byte reads use.
+     *
+     * @param key
+     * @param destination where to write the file to
+     * @return the number of bytes written, or -1 if the file doesn't exist,
+     *         either according to the tracker or to every storage node
+     */
+    public long getFile(final String key, final WritableByteChannel destination)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        String[] paths = getReadPaths(key);
+        if (paths == null) {
+            return -1;
+        }
+
+        return download(key, paths, destination);
+    }
+
+    private long download(final String key, final String[] paths, final WritableByteChannel destination)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        long start = (destination instanceof FileChannel) ? ((FileChannel) destination).position() : 0;
+
+        List<String> ordered = orderPaths(paths);
+        int missing = 0;
+        for (String path : ordered) {
+            if (log.isDebugEnabled()) {
+                log.debug("retrieving file from " + path);
+            }
+
+            URL url = new URL(path);
+            if (!ChannelDownload.canDownload(url)) {
+                return copyStream(key, paths, destination);
+            }
+
+            ChannelDownload download = new ChannelDownload(url, socketConfig);
+            try {
+                return download.writeTo(destination);
+
+            } catch (FileNotFoundException e) {
+                log.warn("file is missing from " + path);
+                missing++;
+
+            } catch (IOException e) {
+                log.warn("problem reading file from " + path + ": " + e.getMessage());
+
+                if (download.getBytesWritten() > 0) {
+                    if (!(destination instanceof FileChannel)) {
+                        // part of the file is out the door already, so we can't start over
+                        throw new StorageCommunicationException("problem reading file with key '" + key
+                                + "' from " + path + " after " + download.getBytesWritten() + " bytes", e);
+                    }
+
+                    FileChannel file = (FileChannel) destination;
+                    file.truncate(start);
+                    file.position(start);
+                }
+            }
+        }
+
+        if (missing == ordered.size()) {
+            // the file was deleted after we looked up its paths
+            invalidatePaths(key);
+            return -1;
+        }
+
+        throw unableToRetrieve(key, paths);
+    }
+
+    /**
+     * Fallback for paths ChannelDownload can't handle.
+     */
+    private long copyStream(final String key, final String[] paths, final WritableByteChannel destination)
+            throws IOException, StorageCommunicationException {
+        StorageResponse response = openAnyPath(orderPaths(paths), 0, -1);
+        if (response == null) {
+            throw unableToRetrieve(key, paths);
+        }
+
+        InputStream in = response.getBody();
+
+        try {
+            ReadableByteChannel source = Channels.newChannel(in);
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            long count = 0;
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    count += destination.write(buffer);
+                }
+                buffer.clear();
+            }
+            return count;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Download the file in segments. The first segment is fetched right
+     * away, which also tells us how big the file is. The other segments are
+     * then downloaded by up to downloadParallelism threads (this one
+     * included), each segment starting with a different replica, and
+     * written straight to their place in the destination file.
+     *
+     * @return false if the first segment couldn't be fetched with a range
+     *         request, in which case nothing was written
+     */
+    private boolean getFileSegmented(final String key, final String[] paths, final File destination,
+                                     final long segmentSize)
+            throws IOException, StorageCommunicationException {
+        final List<String> replicas = orderPaths(paths);
+
+        StorageResponse first = openAnyPath(replicas, 0, segmentSize);
+        if ((first == null) || (first.getTotalLength() < 0)) {
+            // maybe the file is empty or the storage nodes don't do ranges
+            if (first != null) {
+                first.abort();
+            }
+            log.info("unable to download " + key + " in segments, downloading it in one piece");
+            return false;
+        }
+
+        final long totalLength = first.getTotalLength();
+        final int segments = (int) ((totalLength + segmentSize - 1) / segmentSize);
+
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        try {
+            file.setLength(totalLength);
+            final FileChannel channel = file.getChannel();
+
+            final AtomicInteger nextSegment = new AtomicInteger(1);
+            final AtomicBoolean failed = new AtomicBoolean();
+
+            // the segments after the first one are picked up by whichever thread is free
+            Runnable worker = new Runnable() {
+                public void run() {
+                    int segment;
+                    while (!failed.get() && ((segment = nextSegment.getAndIncrement()) < segments)) {
+                        long offset = segment * segmentSize;
+                        long length = Math.min(segmentSize, totalLength - offset);
+                        if (!downloadSegment(replicas, segment, offset, length, channel)) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            };
+
+            List<Future<?>> workers = new ArrayList<Future<?>>();
+            for (int i = 1; i < Math.min(downloadParallelism, segments); i++) {
+                workers.add(getWorkerExecutor().submit(worker));
+            }
+
+            try {
+                copySegment(first, 0, Math.min(segmentSize, totalLength), channel);
+            } catch (IOException e) {
+                log.warn("problem downloading segment 0 of " + key + " from " + first.getPath());
+                first.abort();
+                if (!downloadSegment(replicas, 0, 0, Math.min(segmentSize, totalLength), channel)) {
+                    failed.set(true);
+                }
+            }
+
+            worker.run();
+
+            for (Future<?> future : workers) {
+                try {
+                    getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    log.warn("problem downloading segments of " + key, e.getCause());
+                    failed.set(true);
+                }
+            }
+
+            if (failed.get()) {
+                throw unableToRetrieve(key, paths);
+            }
+
+        } finally {
+            file.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Download one segment, starting with a different replica for every
+     * segment and trying all of them if need be.
+     *
+     * @return false if no replica would give us the segment
+     */
+    private boolean downloadSegment(final List<String> replicas, final int segment, final long offset,
+                                    final long length, final FileChannel channel) {
+        for (int i = 0; i < replicas.size(); i++) {
+            String path = replicas.get((segment + i) % replicas.size());
+
+            StorageResponse response = null;
+            try {
+                response = new StorageRead(path, offset, length).call();
+                copySegment(response, offset, length, channel);
+                return true;
+
+            } catch (IOException e) {
+                log.warn("problem downloading bytes " + offset + "-" + (offset + length - 1) + " from " + path);
+                if (response != null) {
+                    response.abort();
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the body of the response to its place in the file.
+     */
+    private static void copySegment(final StorageResponse response, final long offset, final long length,
+                                    final FileChannel channel) throws IOException {
+        InputStream in = response.getBody();
+        try {
+            byte[] buffer = new byte[65536];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = offset;
+            long end = offset + length;
+
+            while (position < end) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (count < 0) {
+                    break;
+                }
+
+                wrapped.clear();
+                wrapped.limit(count);
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+            }
+
+            if (position < end) {
+                throw new IOException("only got " + (position - offset) + " of " + length + " bytes from "
+                        + response.getPath());
+            }
+
+        } finally {
+            in.close();
+        }
+    }
+
+    public byte[] getFileBytes(final String key)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        if (!requestCoalescing) {
+            return fetchFileBytes(key, 0, -1);
+        }
+
+        try {
+            return byteFetches.execute(key, new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return fetchFileBytes(key, 0, -1);
+                }
+            });
+
+        } catch (NoTrackersException e) {
+            throw e;
+        } catch (TrackerCommunicationException e) {
+            throw e;
+        } catch (StorageCommunicationException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StorageCommunicationException("problem retrieving file with key '" + key + "'", e);
+        }
+    }
+
+    /**
+     * Read part of a file into memory with an HTTP Range request. Storage
+     * nodes that ignore the range are skipped. Return null if the file
+     * doesn't exist.
+     *
+     * @param key
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     */
+    public byte[] getFileBytes(final String key, final long offset, final long length)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        checkRange(offset, length);
+
+        return fetchFileBytes(key, offset, length);
+    }
+
+    private byte[] fetchFileBytes(final String key, final long offset, final long length)
+            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
+        // pull in the paths for this file
+        String paths[] = getReadPaths(key);
+
+        // does this exist?
+        if (paths == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("couldn't find paths for " + key);
+            }
+            return null;
+        }
+
+        if (length == 0) {
+            return new byte[0];
+        }
+
+        // if reading from one storage node fails halfway, try the others
+        List<String> remaining = orderPaths(paths);
+        StorageResponse response;
+        while ((response = openAnyPath(remaining, offset, length)) != null) {
+            try {
+                return readBody(response);
+
+            } catch (IOException e) {
+                log.warn("problem reading file from " + response.getPath());
+                response.abort();
+                remaining.remove(response.getPath());
+            }
+        }
+
+        throw unableToRetrieve(key, paths);
+    }
+
+    /**
+     * Read the whole body of the response and close it.
+     */
+    private static byte[] readBody(final StorageResponse response) throws IOException {
+        InputStream in = response.getBody();
+        try {
+            long length = response.getContentLength();
+
+            if (length < 0) {
+                // no content length, so read until the end
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            }
+
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            int count = 0;
+            while ((offset < bytes.length) && ((count = in.read(bytes, offset, bytes.length - offset)) > 0)) {
+                // just keep reading until we've got it all
+                offset += count;
+            }
+
+            if (offset < bytes.length) {
+                throw new IOException("only got " + offset + " of " + length + " bytes from " + response.getPath());
+            }
+
+            return bytes;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Retrieve the data from some file. Return null if the file doesn't
+     * exist, or throw an exception if we just can't get it from any
+     * of the storage nodes
+     *
+     * @param key
+     * @return
+     */
+    public InputStream getFileStream(final String key)
+            throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException {
+        return getFileStream(key, 0, -1);
+    }
+
+    /**
+     * Retrieve part of the data from some file with an HTTP Range request.
+     * Storage nodes that ignore the range are skipped. Return null if the
+     * file doesn't exist, or throw an exception if we just can't get it
+     * from any of the storage nodes
+     *
+     * @param key
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     * @return
+     */
+    public InputStream getFileStream(final String key, final long offset, final long length)
+            throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException {
+        checkRange(offset, length);
+
+        // pull in the paths for this file
+        String paths[] = getReadPaths(key);
+
+        // does this exist?
+        if (paths == null) {
+            return null;
+        }
+
+        if (length == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        StorageResponse response = openAnyPath(orderPaths(paths), offset, length);
+        if (response == null) {
+            throw unableToRetrieve(key, paths);
+        }
+
+        return response.getBody();
+    }
+
+    private static void checkRange(final long offset, final long length) {
+        if ((offset < 0) || (length < -1)) {
+            throw new IllegalArgumentException("bad range: offset " + offset + ", length " + length);
+        }
+    }
+
+    /**
+     * Return the paths in the order we should try them: a random one first
+     * and then the others, unless we're told to keep the order of the
+     * tracker.
+     */
+    private List<String> orderPaths(final String[] paths) {
+        int startIndex = keepPathOrder ? 0 : (int) Math.floor(Math.random() * paths.length);
+
+        List<String> ordered = new ArrayList<String>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            ordered.add(paths[(startIndex + i) % paths.length]);
         }
-        throw new MogileException("Unable to store file on mogile");
+        return ordered;
     }
 
     /**
-     * Read in an file and store it in the provided file. Return
-     * the reference to the file, or null if we couldn't find the
-     * object with the given key
+     * Start a GET of the file, or the given part of it, from one of the
+     * paths and wait for its response headers. Without hedging, the paths
+     * are tried one after the other.
      *
-     * @param key
-     * @param destination
-     * @throws NoTrackersException
-     * @throws TrackerCommunicationException
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     * @return the first response that worked, or null if none did
      */
-    public File getFile(final String key, final File destination)
-            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
-        InputStream in = getFileStream(key);
-
-        if (in == null) {
-            return null;
+    private StorageResponse openAnyPath(final List<String> paths, final long offset, final long length) {
+        long delay = getHedgeDelay();
+        if ((delay > 0) && (paths.size() > 1)) {
+            return openHedged(paths, offset, length, delay);
         }
-        try {
-            OutputStream out = new FileOutputStream(destination);
+
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            if (log.isDebugEnabled()) {
+                log.debug("retrieving file from " + path + " (attempt #" + (i + 1) + ")");
+            }
+
             try {
-                byte[] buffer = new byte[4096];
-                int count = 0;
-                while ((count = in.read(buffer)) >= 0) {
-                    out.write(buffer, 0, count);
-                }
-            } finally {
-                out.close();
+                return new StorageRead(path, offset, length).call();
+            } catch (IOException e) {
+                log.warn("problem reading file from " + path);
             }
-        } finally {
-            in.close();
         }
 
-        return destination;
+        return null;
     }
 
-    public byte[] getFileBytes(final String key)
-            throws NoTrackersException, TrackerCommunicationException, IOException, StorageCommunicationException {
-        // pull in the paths for this file
-        String paths[] = getPaths(key, false);
+    /**
+     * Start a GET from the first path, and if it hasn't answered after
+     * delayMillis, start another one from the next path and use whichever
+     * answers first. A failed GET is replaced by one from the next path
+     * right away. There are never more than two GETs going at once, and the
+     * ones we don't use are aborted.
+     *
+     * @return the first response that worked, or null if none did
+     */
+    private StorageResponse openHedged(final List<String> paths, final long offset, final long length,
+                                       final long delayMillis) {
+        CompletionService<StorageResponse> completion =
+                new ExecutorCompletionService<StorageResponse>(getWorkerExecutor());
+        List<StorageRead> reads = new ArrayList<StorageRead>();
+        StorageResponse winner = null;
 
-        // does this exist?
-        if (paths == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("couldn't find paths for " + key);
-            }
-            return null;
-        }
+        try {
+            int next = 0;
+            int running = 0;
 
-        // randomly pick one of the files to retrieve and if that fails, try
-        // to get another one
-        int startIndex = keepPathOrder ? 0 : (int) Math.floor(Math.random() * paths.length);
-        int tries = paths.length;
+            reads.add(submitRead(completion, paths.get(next++), offset, length));
+            running++;
 
-        while (tries-- > 0) {
-            String path = paths[startIndex++ % paths.length];
+            while (running > 0) {
+                Future<StorageResponse> done = ((next < paths.size()) && (running < 2))
+                        ? completion.poll(delayMillis, TimeUnit.MILLISECONDS) : completion.take();
 
-            try {
-                URL pathURL = new URL(path);
-                if (log.isDebugEnabled()) {
-                    log.debug("retrieving file from " + path + " (attempt #" + (paths.length - tries) + ")");
+                if (done == null) {
+                    // taking too long, ask another replica
+                    if (log.isDebugEnabled()) {
+                        log.debug("no answer after " + delayMillis + "ms, hedging with " + paths.get(next));
+                    }
+                    reads.add(submitRead(completion, paths.get(next++), offset, length));
+                    running++;
+                    continue;
                 }
 
-                HttpURLConnection conn = (HttpURLConnection) pathURL.openConnection();
-                InputStream in = conn.getInputStream();
+                running--;
+                try {
+                    winner = done.get();
+                    return winner;
+
+                } catch (ExecutionException e) {
+                    log.warn("problem reading file: " + e.getCause().getMessage());
 
-                byte[] bytes = new byte[conn.getContentLength()];
-                int offset = 0;
-                int count = 0;
-                while ((offset < bytes.length) && ((count = in.read(bytes, offset, bytes.length - offset)) > 0)) {
-                    // just keep reading until we've got it all
-                    offset += count;
+                    if (next < paths.size()) {
+                        reads.add(submitRead(completion, paths.get(next++), offset, length));
+                        running++;
+                    }
                 }
+            }
 
-                return bytes;
+            return null;
 
-            } catch (IOException e) {
-                log.warn("problem reading file from " + path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+
+        } finally {
+            for (StorageRead read : reads) {
+                read.abortUnless(winner);
             }
         }
+    }
+
+    private StorageRead submitRead(final CompletionService<StorageResponse> completion, final String path,
+                                   final long offset, final long length) {
+        StorageRead read = new StorageRead(path, offset, length);
+        completion.submit(read);
+        return read;
+    }
+
+    private StorageCommunicationException unableToRetrieve(final String key, final String[] paths) {
+        // the paths we have might be stale
+        invalidatePaths(key);
 
         StringBuilder pathString = new StringBuilder();
         for (int i = 0; i < paths.length; i++) {
@@ -409,58 +1823,66 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             pathString.append(paths[i]);
         }
 
-        throw new StorageCommunicationException("unable to retrieve file from any storage node: " + pathString);
+        return new StorageCommunicationException(
+                "unable to retrieve file with key '" + key + "' from any storage node: " + pathString);
+    }
+
+    /**
+     * @return how long to wait for a storage node before hedging, 0 if
+     *         hedging is off
+     */
+    private long getHedgeDelay() {
+        long delay = hedgeDelay;
+        if ((delay <= 0) || !adaptiveHedgeDelay || (readLatencies.size() < MIN_HEDGE_SAMPLES)) {
+            return delay;
+        }
+
+        return Math.max(1, readLatencies.getPercentile(95));
     }
 
     /**
-     * Retrieve the data from some file. Return null if the file doesn't
-     * exist, or throw an exception if we just can't get it from any
-     * of the storage nodes
-     *
-     * @param key
-     * @return
+     * One GET from a storage node, which can be run in the background and
+     * aborted from another thread.
      */
-    public InputStream getFileStream(final String key)
-            throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException {
-        // pull in the paths for this file
-        String paths[] = getPaths(key, false);
+    private class StorageRead implements Callable<StorageResponse> {
 
-        // does this exist?
-        if (paths == null) {
-            return null;
-        }
+        private final String path;
 
-        // randomly pick one of the files to retrieve and if that fails, try
-        // to get another one
-        int startIndex = keepPathOrder ? 0 : (int) Math.floor(Math.random() * paths.length);
-        int tries = paths.length;
+        private final long offset;
 
-        while (tries-- > 0) {
-            String path = paths[startIndex++ % paths.length];
+        private final long length;
 
-            try {
-                URL pathURL = new URL(path);
-                if (log.isDebugEnabled()) {
-                    log.debug("retrieving file from " + path + " (attempt #" + (paths.length - tries) + ")");
-                }
+        private volatile StorageResponse response;
 
-                return pathURL.openStream();
+        private volatile boolean aborted;
 
-            } catch (IOException e) {
-                log.warn("problem reading file from " + path);
-            }
+        StorageRead(final String path, final long offset, final long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
         }
 
-        StringBuilder pathString = new StringBuilder();
-        for (int i = 0; i < paths.length; i++) {
-            if (i > 0) {
-                pathString.append(", ");
+        public StorageResponse call() throws IOException {
+            long start = System.currentTimeMillis();
+
+            response = new StorageResponse(path, getStorageClient(), socketConfig, offset, length);
+            if (aborted) {
+                throw new IOException("request for " + path + " was aborted");
             }
-            pathString.append(paths[i]);
+            response.connect();
+
+            readLatencies.record(System.currentTimeMillis() - start);
+            return response;
         }
 
-        throw new StorageCommunicationException(
-                "unable to retrieve file with key '" + key + "' from any storage node: " + pathString);
+        void abortUnless(final StorageResponse winner) {
+            aborted = true;
+
+            StorageResponse current = response;
+            if ((current != null) && (current != winner)) {
+                current.abort();
+            }
+        }
     }
 
     /**
@@ -470,11 +1892,14 @@ public abstract class BaseMogileFSImpl implements MogileFS {
      * @throws NoTrackersException
      */
     public void delete(final String key) throws NoTrackersException {
-        int attempt = 1;
+        invalidatePaths(key);
+
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
 
         Backend backend = null;
 
-        while ((maxRetries == -1) || (attempt++ <= maxRetries)) {
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
             try {
                 backend = borrowBackend();
                 backend.doRequest("delete", new String[]{"domain", domain, "key", key});
@@ -497,22 +1922,45 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             }
 
             // something went wrong - so wait a little while before continuing
-            retrySleep();
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
+            }
         }
 
         throw new NoTrackersException();
     }
 
     /**
-     * Something went wrong - so wait a little while before continuing
+     * Something went wrong - wait a little while before the next attempt of
+     * a call, if there should be one.
+     *
+     * @param failedAttempts how many attempts of the call failed so far
+     * @param startedAt      when the first attempt started
+     * @return false if we should give up on the call
      */
-    private void retrySleep() {
-        if (retrySleepTime > 0) {
+    private boolean awaitRetry(final int failedAttempts, final long startedAt) {
+        if ((maxRetries != -1) && (failedAttempts >= maxRetries)) {
+            // that was the last attempt, no use waiting
+            return false;
+        }
+
+        RetryPolicy policy = retryPolicy;
+        long delay = (policy == null) ? retrySleepTime
+                : policy.getRetryDelay(failedAttempts, System.currentTimeMillis() - startedAt);
+        if (delay < 0) {
+            return false;
+        }
+
+        if (delay > 0) {
             try {
-                Thread.sleep(retrySleepTime);
-            } catch (Exception e) {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
+
+        return true;
     }
 
     /**
@@ -528,6 +1976,14 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             backend.doRequest("sleep", new String[]{"duration",
                     Integer.toString(seconds)});
 
+        } catch (TrackerCommunicationException e) {
+            // don't use this any more
+            if (backend != null) {
+                invalidateBackend(backend);
+                backend = null;
+            }
+            throw e;
+
         } finally {
             if (backend != null) {
                 returnBackend(backend);
@@ -545,11 +2001,15 @@ public abstract class BaseMogileFSImpl implements MogileFS {
      * @throws NoTrackersException
      */
     public void rename(final String fromKey, final String toKey) throws NoTrackersException {
-        int attempt = 1;
+        invalidatePaths(fromKey);
+        invalidatePaths(toKey);
+
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
 
         Backend backend = null;
 
-        while ((maxRetries == -1) || (attempt++ <= maxRetries)) {
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
             try {
                 backend = borrowBackend();
 
@@ -573,7 +2033,9 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             }
 
             // something went wrong - so wait a little while before continuing
-            retrySleep();
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
+            }
         }
 
         throw new NoTrackersException();
@@ -591,26 +2053,51 @@ public abstract class BaseMogileFSImpl implements MogileFS {
      * @throws NoTrackersException
      */
     public String[] getPaths(final String key, final boolean noverify) throws NoTrackersException {
-        int attempt = 1;
+        if (!requestCoalescing) {
+            return fetchPaths(key, noverify);
+        }
+
+        try {
+            return pathLookups.execute((noverify ? "1" : "0") + key, new Callable<String[]>() {
+                public String[] call() throws Exception {
+                    return fetchPaths(key, noverify);
+                }
+            });
+
+        } catch (NoTrackersException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // fetchPaths doesn't throw anything else
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String[] fetchPaths(final String key, final boolean noverify) throws NoTrackersException {
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
 
         Backend backend = null;
 
-        while ((maxRetries == -1) || (attempt++ <= maxRetries)) {
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
             try {
                 backend = borrowBackend();
 
-                Map<String, String> response = backend.doRequest("get_paths", new String[]{"domain",
-                        domain, "key", key, "noverify", (noverify ? "1" : "0")});
+                String[] paths = backend.doRequest("get_paths", new String[]{"domain",
+                        domain, "key", key, "noverify", (noverify ? "1" : "0")}, ResponseDecoder.PATHS);
 
-                if (response == null) {
-                    return null;
+                // reads want paths the tracker has checked, so unverified ones
+                // mustn't end up in the cache they read from
+                ExpiringLruCache<String[]> cache = noverify ? null : pathCache;
+                if ((cache != null) && (paths != null)) {
+                    // the caller may do what it likes with the array we return
+                    cache.put(key, paths.clone());
                 }
 
-                int pathCount = Integer.parseInt(response.get("paths"));
-                String[] paths = new String[pathCount];
-                for (int i = 1; i <= pathCount; i++) {
-                    String path = response.get("path" + i);
-                    paths[i - 1] = path;
+                ExpiringLruCache<Boolean> missing = missingKeyCache;
+                if ((missing != null) && (paths == null) && "unknown_key".equals(backend.getLastErr())) {
+                    missing.put(key, Boolean.TRUE);
                 }
 
                 return paths;
@@ -630,12 +2117,258 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             }
 
             // something went wrong - so wait a little while before continuing
-            retrySleep();
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
+            }
+        }
+
+        throw new NoTrackersException();
+    }
+
+    public Map<String, PathLookupResult> getPaths(final Collection<String> keys) throws NoTrackersException {
+        return getPaths(keys, false);
+    }
+
+    /**
+     * Look up the paths of a bunch of keys at once. The keys are split into
+     * chunks that are looked up on up to batchParallelism tracker
+     * connections at the same time, and all requests of a chunk are
+     * pipelined on its connection. If a chunk can't be looked up at all, its
+     * keys get a 'no_trackers' error.
+     *
+     * @param keys     the keys to look up. Duplicates are only looked up once.
+     * @param noverify If true, then ask the server not to bother checking that the
+     *                 paths it's going to return are valid.
+     * @return one result per distinct key, in the order of the keys
+     * @throws NoTrackersException if we couldn't look up any of the keys
+     */
+    public Map<String, PathLookupResult> getPaths(final Collection<String> keys, final boolean noverify)
+            throws NoTrackersException {
+        List<String> unique = new ArrayList<String>(new LinkedHashSet<String>(keys));
+        Map<String, PathLookupResult> results = new LinkedHashMap<String, PathLookupResult>();
+        if (unique.isEmpty()) {
+            return results;
+        }
+
+        int chunks = Math.min(batchParallelism, (unique.size() + MIN_BATCH_CHUNK - 1) / MIN_BATCH_CHUNK);
+        int chunkSize = (unique.size() + chunks - 1) / chunks;
+
+        // hand all chunks but the first to other threads, and do that one ourselves
+        List<Future<List<PathLookupResult>>> futures = new ArrayList<Future<List<PathLookupResult>>>();
+        for (int start = chunkSize; start < unique.size(); start += chunkSize) {
+            final List<String> chunk = unique.subList(start, Math.min(start + chunkSize, unique.size()));
+            futures.add(getWorkerExecutor().submit(new Callable<List<PathLookupResult>>() {
+                public List<PathLookupResult> call() throws Exception {
+                    return lookupPaths(chunk, noverify);
+                }
+            }));
+        }
+
+        int failed = 0;
+        List<String> first = unique.subList(0, Math.min(chunkSize, unique.size()));
+        try {
+            addResults(results, lookupPaths(first, noverify));
+        } catch (NoTrackersException e) {
+            addFailures(results, first);
+            failed += first.size();
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            int start = (i + 1) * chunkSize;
+            List<String> chunk = unique.subList(start, Math.min(start + chunkSize, unique.size()));
+            try {
+                addResults(results, getUninterruptibly(futures.get(i)));
+            } catch (ExecutionException e) {
+                log.warn("problem looking up paths", e.getCause());
+                addFailures(results, chunk);
+                failed += chunk.size();
+            }
+        }
+
+        if (failed == unique.size()) {
+            throw new NoTrackersException();
+        }
+
+        return results;
+    }
+
+    /**
+     * Look up the paths of some keys with one pipelined batch of requests on
+     * one tracker connection.
+     */
+    private List<PathLookupResult> lookupPaths(final List<String> keys, final boolean noverify)
+            throws NoTrackersException {
+        List<String[]> argsList = new ArrayList<String[]>(keys.size());
+        for (String key : keys) {
+            argsList.add(new String[]{"domain", domain, "key", key, "noverify", (noverify ? "1" : "0")});
+        }
+
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
+
+        Backend backend = null;
+
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
+            try {
+                backend = borrowBackend();
+
+                List<String[]> paths = backend.doPipelinedRequest("get_paths", argsList, ResponseDecoder.PATHS);
+
+                ExpiringLruCache<String[]> cache = noverify ? null : pathCache;
+                ExpiringLruCache<Boolean> missing = missingKeyCache;
+
+                List<PathLookupResult> results = new ArrayList<PathLookupResult>(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    String[] keyPaths = paths.get(i);
+                    String err = backend.getLastErr(i);
+
+                    if ((cache != null) && (keyPaths != null)) {
+                        cache.put(key, keyPaths.clone());
+                    }
+                    if ((missing != null) && (keyPaths == null) && "unknown_key".equals(err)) {
+                        missing.put(key, Boolean.TRUE);
+                    }
+
+                    results.add(new PathLookupResult(key, keyPaths, err, backend.getLastErrStr(i)));
+                }
+
+                return results;
+
+            } catch (TrackerCommunicationException e) {
+                log.warn(e.getMessage(), e);
+
+                if (backend != null) {
+                    invalidateBackend(backend);
+                    backend = null;
+                }
+
+            } finally {
+                if (backend != null) {
+                    returnBackend(backend);
+                }
+            }
+
+            // something went wrong - so wait a little while before continuing
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
+            }
         }
 
         throw new NoTrackersException();
     }
 
+    private static void addResults(final Map<String, PathLookupResult> results, final List<PathLookupResult> chunk) {
+        for (PathLookupResult result : chunk) {
+            results.put(result.getKey(), result);
+        }
+    }
+
+    private static void addFailures(final Map<String, PathLookupResult> results, final List<String> keys) {
+        for (String key : keys) {
+            results.put(key, new PathLookupResult(key, null, "no_trackers", "unable to reach a tracker"));
+        }
+    }
+
+    /**
+     * Wait for background work that is only bound by socket timeouts.
+     */
+    static <T> T getUninterruptibly(final Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Return the HttpClient for talking to the storage nodes. It keeps
+     * connections alive and pools them per storage node, and is safe to use
+     * from any number of threads. It doesn't retry requests by itself,
+     * since we'd rather move on to another replica.
+     */
+    synchronized HttpClient getStorageClient() {
+        assertOpen();
+        if (storageClient == null) {
+            storageConnManager = new ThreadSafeClientConnManager(socketConfig.createStorageSchemeRegistry());
+            storageConnManager.setDefaultMaxPerRoute(maxStorageConnectionsPerHost);
+            storageConnManager.setMaxTotal(maxStorageConnections);
+
+            HttpParams params = new BasicHttpParams();
+            socketConfig.applyToStorageParams(params);
+
+            DefaultHttpClient client = new DefaultHttpClient(storageConnManager, params);
+            client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+            storageClient = client;
+        }
+
+        return storageClient;
+    }
+
+    /**
+     * Return the executor for background work, like the extra chunks of a
+     * batch lookup. Its threads are daemon threads and go away when idle.
+     */
+    synchronized ExecutorService getWorkerExecutor() {
+        assertOpen();
+        if (workerExecutor == null) {
+            workerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "mogilefs-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return workerExecutor;
+    }
+
+    /**
+     * Return the paths to read the given key from, from the path cache if
+     * possible, or null if the key doesn't exist. Don't modify the returned
+     * array.
+     */
+    private String[] getReadPaths(final String key) throws NoTrackersException {
+        ExpiringLruCache<Boolean> missing = missingKeyCache;
+        if ((missing != null) && (missing.get(key) != null)) {
+            return null;
+        }
+
+        ExpiringLruCache<String[]> cache = pathCache;
+        if (cache != null) {
+            String[] paths = cache.get(key);
+            if (paths != null) {
+                return paths;
+            }
+        }
+
+        return getPaths(key, false);
+    }
+
+    private void invalidatePaths(final String key) {
+        ExpiringLruCache<String[]> cache = pathCache;
+        if (cache != null) {
+            cache.remove(key);
+        }
+
+        ExpiringLruCache<Boolean> missing = missingKeyCache;
+        if (missing != null) {
+            missing.remove(key);
+        }
+    }
+
     /**
      * Return the after key and a list of keys matching your key. Return
      * null if there was an error from the server.
@@ -645,29 +2378,19 @@ public abstract class BaseMogileFSImpl implements MogileFS {
      * @throws NoTrackersException
      */
     public Object[] listKeys(final String key, final String after, final int limit) throws NoTrackersException {
-        int attempt = 1;
+        int failedAttempts = 0;
+        long startedAt = System.currentTimeMillis();
 
         Backend backend = null;
 
-        while ((maxRetries == -1) || (attempt++ <= maxRetries)) {
+        while ((maxRetries == -1) || (failedAttempts < maxRetries)) {
             try {
                 backend = borrowBackend();
 
-                Map<String, String> response = backend.doRequest("list_keys", new String[]{"domain",
-                        domain, "prefix", key, "after", after == null ? "" : after});
-
-                if (response == null) {
-                    return null;
-                }
-
-                int keyCount = Integer.parseInt(response.get("key_count"));
-                String[] retKeys = new String[keyCount];
-                for (int i = 1; i <= keyCount; i++) {
-                    String retKey = response.get("key_" + i);
-                    retKeys[i - 1] = retKey;
-                }
+                KeyList keys = backend.doRequest("list_keys", new String[]{"domain",
+                        domain, "prefix", key, "after", after == null ? "" : after}, ResponseDecoder.LIST_KEYS);
 
-                return new Object[]{retKeys, response.get("after_key")};
+                return (keys == null) ? null : keys.toArray();
 
             } catch (TrackerCommunicationException e) {
                 log.warn(e.getMessage(), e);
@@ -684,12 +2407,8 @@ public abstract class BaseMogileFSImpl implements MogileFS {
             }
 
             // something went wrong - so wait a little while before continuing
-            if (retrySleepTime > 0) {
-                try {
-                    Thread.sleep(retrySleepTime);
-                } catch (Exception e) {
-                }
-                ;
+            if (!awaitRetry(++failedAttempts, startedAt)) {
+                break;
             }
         }
 
@@ -710,9 +2429,9 @@ public abstract class BaseMogileFSImpl implements MogileFS {
     }
 
     Backend borrowBackend() throws NoTrackersException {
-        try {
-            ObjectPool backendPool = getBackendPool();
+        ObjectPool backendPool = getBackendPool();
 
+        try {
             if (log.isDebugEnabled()) {
                 log.debug("getting backend (active: " + backendPool.getNumActive() + ", idle: " +
                         backendPool.getNumIdle() + ")");
@@ -734,6 +2453,12 @@ public abstract class BaseMogileFSImpl implements MogileFS {
     }
 
     void returnBackend(final Backend backend) {
+        if (closed) {
+            // the pool is gone
+            backend.destroy();
+            return;
+        }
+
         try {
             ObjectPool backendPool = getBackendPool();
 
@@ -756,6 +2481,11 @@ public abstract class BaseMogileFSImpl implements MogileFS {
     }
 
     void invalidateBackend(final Backend backend) {
+        if (closed) {
+            backend.destroy();
+            return;
+        }
+
         try {
             ObjectPool backendPool = getBackendPool();
 
@@ -0,0 +1,236 @@
+package com.guba.mogilefs;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The manifest of a big file, stored the way the Perl mogtool does it. A
+ * big file is split into chunks stored under 'key,1', 'key,2' and so on,
+ * and the manifest under '_big_info:key' lists them:
+ *
+ * <pre>
+ * des no description
+ * type file
+ * compressed 0
+ * filename /path/to/file
+ * chunks 2
+ * size 100663296
+ *
+ * part 1 bytes=67108864 md5=... paths: http://..., http://...
+ * part 2 bytes=33554432 md5=... paths: http://...
+ * </pre>
+ *
+ * While the chunks are being stored there's also a '_big_pre:key' file,
+ * which goes away once the manifest is in place.
+ */
+class BigFileInfo {
+
+    static final String INFO_PREFIX = "_big_info:";
+
+    static final String PRE_PREFIX = "_big_pre:";
+
+    private static final Pattern HEADER_LINE = Pattern.compile("^(\\w+) (.*)$");
+
+    private static final Pattern PART_LINE = Pattern.compile("^part (\\d+) bytes=(\\d+)(?: md5=(\\S+))?(?: paths: (.*))?$");
+
+    private String description = "no description";
+
+    private String type = "file";
+
+    private boolean compressed;
+
+    private String filename = "";
+
+    private long size;
+
+    private long[] chunkBytes;
+
+    private String[] chunkMd5s;
+
+    private String[][] chunkPaths;
+
+    BigFileInfo(final int chunks) {
+        this.chunkBytes = new long[chunks];
+        this.chunkMd5s = new String[chunks];
+        this.chunkPaths = new String[chunks][];
+    }
+
+    static String chunkKey(final String key, final int chunk) {
+        return key + "," + chunk;
+    }
+
+    public int getChunks() {
+        return chunkBytes.length;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(final long size) {
+        this.size = size;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setFilename(final String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * @param chunk starting at 1, like in the chunk keys
+     */
+    public long getChunkBytes(final int chunk) {
+        return chunkBytes[chunk - 1];
+    }
+
+    /**
+     * @return the hex MD5 of the chunk, or null if the manifest doesn't say
+     */
+    public String getChunkMd5(final int chunk) {
+        return chunkMd5s[chunk - 1];
+    }
+
+    public void setChunk(final int chunk, final long bytes, final String md5, final String[] paths) {
+        chunkBytes[chunk - 1] = bytes;
+        chunkMd5s[chunk - 1] = md5;
+        chunkPaths[chunk - 1] = paths;
+    }
+
+    public void setChunkPaths(final int chunk, final String[] paths) {
+        chunkPaths[chunk - 1] = paths;
+    }
+
+    static String toHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public byte[] toBytes() {
+        StringBuilder info = new StringBuilder();
+        info.append("des ").append(description).append('\n');
+        info.append("type ").append(type).append('\n');
+        info.append("compressed ").append(compressed ? 1 : 0).append('\n');
+        info.append("filename ").append(filename).append('\n');
+        info.append("chunks ").append(getChunks()).append('\n');
+        info.append("size ").append(size).append('\n');
+        info.append('\n');
+
+        for (int i = 0; i < getChunks(); i++) {
+            info.append("part ").append(i + 1).append(" bytes=").append(chunkBytes[i]);
+            info.append(" md5=").append(chunkMd5s[i]).append(" paths: ");
+            String[] paths = chunkPaths[i];
+            for (int j = 0; (paths != null) && (j < paths.length); j++) {
+                info.append((j > 0) ? ", " : "").append(paths[j]);
+            }
+            info.append('\n');
+        }
+
+        try {
+            return info.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IOException if the manifest doesn't make sense
+     */
+    public static BigFileInfo parse(final byte[] bytes) throws IOException {
+        String[] lines = new String(bytes, "UTF-8").split("\r?\n");
+
+        int line = 0;
+
+        // the header, up to the blank line
+        String description = null;
+        String type = null;
+        String filename = null;
+        boolean compressed = false;
+        long size = -1;
+        int chunks = -1;
+        for (; (line < lines.length) && (lines[line].length() > 0); line++) {
+            Matcher m = HEADER_LINE.matcher(lines[line]);
+            if (!m.matches()) {
+                throw new IOException("bad line in big file manifest: " + lines[line]);
+            }
+
+            String name = m.group(1);
+            String value = m.group(2);
+            try {
+                if ("des".equals(name)) {
+                    description = value;
+                } else if ("type".equals(name)) {
+                    type = value;
+                } else if ("compressed".equals(name)) {
+                    compressed = !"0".equals(value.trim());
+                } else if ("filename".equals(name)) {
+                    filename = value;
+                } else if ("chunks".equals(name)) {
+                    chunks = Integer.parseInt(value.trim());
+                } else if ("size".equals(name)) {
+                    size = Long.parseLong(value.trim());
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("bad line in big file manifest: " + lines[line]);
+            }
+        }
+
+        if ((chunks < 0) || (size < 0)) {
+            throw new IOException("big file manifest is missing the number of chunks or the size");
+        }
+
+        BigFileInfo info = new BigFileInfo(chunks);
+        info.size = size;
+        info.compressed = compressed;
+        if (description != null) {
+            info.description = description;
+        }
+        if (type != null) {
+            info.type = type;
+        }
+        if (filename != null) {
+            info.filename = filename;
+        }
+
+        boolean[] seen = new boolean[chunks];
+        for (; line < lines.length; line++) {
+            if (lines[line].length() == 0) {
+                continue;
+            }
+
+            Matcher m = PART_LINE.matcher(lines[line]);
+            int chunk;
+            long partBytes;
+            try {
+                chunk = m.matches() ? Integer.parseInt(m.group(1)) : 0;
+                partBytes = (chunk > 0) ? Long.parseLong(m.group(2)) : 0;
+            } catch (NumberFormatException e) {
+                chunk = 0;
+                partBytes = 0;
+            }
+            if ((chunk < 1) || (chunk > chunks)) {
+                throw new IOException("bad line in big file manifest: " + lines[line]);
+            }
+
+            String paths = m.group(4);
+            info.setChunk(chunk, partBytes, m.group(3),
+                    (paths == null) ? new String[0] : paths.trim().split("\\s*,\\s*"));
+            seen[chunk - 1] = true;
+        }
+
+        for (int i = 0; i < chunks; i++) {
+            if (!seen[i]) {
+                throw new IOException("big file manifest is missing part " + (i + 1));
+            }
+        }
+
+        return info;
+    }
+}
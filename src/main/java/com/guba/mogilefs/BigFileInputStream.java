@@ -0,0 +1,160 @@
+package com.guba.mogilefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the chunks of a big file one after the other as a single stream.
+ * The next few chunks are fetched in the background while the reader
+ * works through the current one, so reading goes as fast as several
+ * storage nodes can send, not just one.
+ *
+ * @see BaseMogileFSImpl#getBigFileStream(String)
+ */
+class BigFileInputStream extends InputStream {
+
+    private final BaseMogileFSImpl mogileFS;
+
+    private final String key;
+
+    private final BigFileInfo info;
+
+    private final int parallelism;
+
+    /* chunks being fetched, in order */
+    private final LinkedList<Future<byte[]>> fetches = new LinkedList<Future<byte[]>>();
+
+    private int nextFetch = 1;
+
+    private byte[] current;
+
+    private int position;
+
+    private boolean closed;
+
+    BigFileInputStream(final BaseMogileFSImpl mogileFS, final String key, final BigFileInfo info,
+                       final int parallelism) {
+        this.mogileFS = mogileFS;
+        this.key = key;
+        this.info = info;
+        this.parallelism = parallelism;
+
+        startFetches();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (current == null) ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Future<byte[]> fetch : fetches) {
+            fetch.cancel(false);
+        }
+        fetches.clear();
+        current = null;
+    }
+
+    /**
+     * Move on to the next chunk if we're done with this one.
+     *
+     * @return false at the end of the file
+     */
+    private boolean ensureAvailable() throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+
+        while ((current == null) || (position >= current.length)) {
+            Future<byte[]> fetch = fetches.poll();
+            if (fetch == null) {
+                return false;
+            }
+
+            try {
+                current = BaseMogileFSImpl.getUninterruptibly(fetch);
+            } catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("problem reading big file " + key + ": " + e.getCause());
+            }
+            position = 0;
+
+            startFetches();
+        }
+
+        return true;
+    }
+
+    private void startFetches() {
+        while ((fetches.size() < parallelism) && (nextFetch <= info.getChunks())) {
+            final int chunk = nextFetch++;
+            fetches.add(mogileFS.getWorkerExecutor().submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return fetchChunk(chunk);
+                }
+            }));
+        }
+    }
+
+    private byte[] fetchChunk(final int chunk) throws IOException, MogileException {
+        String chunkKey = BigFileInfo.chunkKey(key, chunk);
+        byte[] bytes = mogileFS.getFileBytes(chunkKey);
+        if (bytes == null) {
+            throw new IOException("chunk " + chunkKey + " of big file " + key + " is missing");
+        }
+
+        if (bytes.length != info.getChunkBytes(chunk)) {
+            throw new IOException("chunk " + chunkKey + " has " + bytes.length + " bytes instead of "
+                    + info.getChunkBytes(chunk));
+        }
+
+        String md5 = info.getChunkMd5(chunk);
+        if ((md5 != null) && !md5.equalsIgnoreCase(md5Hex(bytes))) {
+            throw new IOException("chunk " + chunkKey + " doesn't match its MD5");
+        }
+
+        return bytes;
+    }
+
+    private static String md5Hex(final byte[] bytes) {
+        try {
+            return BigFileInfo.toHex(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.guba.mogilefs;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Downloads a file from a storage node straight into a channel. The GET is
+ * done by hand over a non-blocking SocketChannel, and the body is moved
+ * from the socket to the destination through a direct buffer that each
+ * thread keeps around, so the bytes never pass through the Java heap. A
+ * Selector provides the connect and read timeouts a blocking channel
+ * wouldn't honor.
+ * <p/>
+ * This only speaks enough HTTP/1.0 to talk to a storage node: one request
+ * per connection, a status line, headers and a body.
+ */
+class ChannelDownload {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /* longest response header we put up with */
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final URL url;
+
+    private final SocketConfig socketConfig;
+
+    private long bytesWritten;
+
+    public ChannelDownload(final URL url, final SocketConfig socketConfig) {
+        this.url = url;
+        this.socketConfig = socketConfig;
+    }
+
+    /**
+     * @return true if we know how to download from the given URL
+     */
+    public static boolean canDownload(final URL url) {
+        return "http".equals(url.getProtocol());
+    }
+
+    /**
+     * @return how many bytes of the body went to the destination so far,
+     *         even if the download failed
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Download the file and write all of it to the destination.
+     *
+     * @return the number of bytes written
+     */
+    public long writeTo(final WritableByteChannel destination) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+
+        int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            socketConfig.applyToStorageSocket(channel.socket());
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+
+            if (!channel.connect(new InetSocketAddress(url.getHost(), port))) {
+                await(selector, socketConfig.getStorageConnectTimeout(), "connect to");
+                channel.finishConnect();
+            }
+
+            key.interestOps(SelectionKey.OP_WRITE);
+            ByteBuffer request = ByteBuffer.wrap(requestBytes(port));
+            while (request.hasRemaining()) {
+                if (channel.write(request) == 0) {
+                    await(selector, socketConfig.getStorageSoTimeout(), "send request to");
+                }
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            long contentLength = readHeader(channel, selector, buffer);
+
+            // whatever came in after the header is the start of the body
+            writeFully(destination, buffer);
+
+            while ((contentLength < 0) || (bytesWritten < contentLength)) {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    break;
+                }
+                if (count == 0) {
+                    await(selector, socketConfig.getStorageSoTimeout(), "read from");
+                    continue;
+                }
+
+                buffer.flip();
+                writeFully(destination, buffer);
+            }
+
+            if ((contentLength >= 0) && (bytesWritten != contentLength)) {
+                throw new EOFException("only got " + bytesWritten + " of " + contentLength + " bytes from " + url);
+            }
+
+            return bytesWritten;
+
+        } finally {
+            selector.close();
+            channel.close();
+        }
+    }
+
+    private byte[] requestBytes(final int port) throws UnsupportedEncodingException {
+        String path = (url.getFile().length() == 0) ? "/" : url.getFile();
+
+        return ("GET " + path + " HTTP/1.0\r\nHost: " + url.getHost() + ":" + port
+                + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Read until we've got the whole response header, check the status and
+     * leave the buffer flipped with any body bytes that came along.
+     *
+     * @return the content length, or -1 if the storage node didn't say
+     */
+    private long readHeader(final SocketChannel channel, final Selector selector, final ByteBuffer buffer)
+            throws IOException {
+        int headerEnd;
+        while ((headerEnd = findHeaderEnd(buffer)) < 0) {
+            if (buffer.position() >= MAX_HEADER_SIZE) {
+                throw new IOException("response header from " + url + " is too long");
+            }
+
+            int count = channel.read(buffer);
+            if (count < 0) {
+                throw new EOFException("connection closed before the response header from " + url);
+            }
+            if (count == 0) {
+                await(selector, socketConfig.getStorageSoTimeout(), "read from");
+            }
+        }
+
+        byte[] headerBytes = new byte[headerEnd];
+        buffer.flip();
+        buffer.get(headerBytes);
+        // skip the blank line
+        buffer.position(headerEnd + 4);
+
+        String[] lines = new String(headerBytes, "ISO-8859-1").split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        int status = (statusLine.length > 1) ? parseInt(statusLine[1]) : -1;
+        if (status == 404) {
+            throw new FileNotFoundException("storage node has no " + url);
+        }
+        if (status != 200) {
+            throw new IOException("storage node answered '" + lines[0] + "' for " + url);
+        }
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if ((colon > 0) && lines[i].substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                try {
+                    return Long.parseLong(lines[i].substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad content length from " + url + ": " + lines[i]);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return where the blank line after the headers starts in what we've
+     *         read so far, or -1 if we haven't got that far
+     */
+    private static int findHeaderEnd(final ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if ((buffer.get(i - 3) == '\r') && (buffer.get(i - 2) == '\n')
+                    && (buffer.get(i - 1) == '\r') && (buffer.get(i) == '\n')) {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private void writeFully(final WritableByteChannel destination, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten += destination.write(buffer);
+        }
+    }
+
+    private void await(final Selector selector, final int timeoutMillis, final String what) throws IOException {
+        selector.selectedKeys().clear();
+        if (selector.select(timeoutMillis) == 0) {
+            throw new SocketTimeoutException("timed out trying to " + what + " " + url);
+        }
+    }
+
+    private static int parseInt(final String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
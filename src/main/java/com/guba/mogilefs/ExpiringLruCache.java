@@ -0,0 +1,107 @@
+package com.guba.mogilefs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small cache that forgets entries after a fixed time to live, and throws
+ * out the least recently used entry once it holds maxEntries. Lookups take
+ * a short lock on the whole cache, which is fine next to the tracker round
+ * trip a hit saves us.
+ */
+class ExpiringLruCache<V> {
+
+    private final int maxEntries;
+
+    private final long ttlNanos;
+
+    private final Map<String, CacheEntry<V>> map;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries max number of entries to keep
+     * @param ttlMillis  how long an entry is good for, in milliseconds
+     */
+    public ExpiringLruCache(final int maxEntries, final long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000 * 1000;
+
+        // access order, so iteration starts with the least recently used entry
+        this.map = new LinkedHashMap<String, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry<V>> eldest) {
+                return size() > ExpiringLruCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it expired
+     */
+    public V get(final String key) {
+        long now = System.nanoTime();
+
+        synchronized (this) {
+            CacheEntry<V> entry = map.get(key);
+            if (entry != null) {
+                if (now - entry.expires < 0) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                map.remove(key);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(final String key, final V value) {
+        CacheEntry<V> entry = new CacheEntry<V>(value, System.nanoTime() + ttlNanos);
+
+        synchronized (this) {
+            map.put(key, entry);
+        }
+    }
+
+    public synchronized void remove(final String key) {
+        map.remove(key);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * @return number of entries, including expired ones that haven't been
+     *         looked up since
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class CacheEntry<V> {
+
+        final V value;
+
+        /* System.nanoTime() after which this is no good any more */
+        final long expires;
+
+        CacheEntry(final V value, final long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
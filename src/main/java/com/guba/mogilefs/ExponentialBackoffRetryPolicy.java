@@ -0,0 +1,112 @@
+package com.guba.mogilefs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waits exponentially longer after each failed attempt, picking the actual
+ * wait at random between zero and that ceiling ("full jitter"), so threads
+ * that failed together don't all come back at the same moment. A call is
+ * given up once its next attempt would start after the deadline.
+ * <p/>
+ * Optionally there's a retry budget shared by every call using the policy:
+ * a number of retries per second, with some room for bursts. Once it's used
+ * up, failed calls give up right away instead of piling more load onto
+ * trackers that are already in trouble. Taking from the budget is
+ * lock-free.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final long deadline;
+
+    /* nanoseconds of budget each retry uses up, 0 for no budget */
+    private volatile long budgetInterval;
+
+    /* how far ahead of the clock the budget may run, in nanoseconds */
+    private volatile long budgetTolerance;
+
+    /* the time at which the budget is paid back, in System.nanoTime() terms */
+    private final AtomicLong budgetClock = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param baseDelayMillis longest wait after the first failure, doubled
+     *                        after each failure after that
+     * @param maxDelayMillis  the longest we'll ever wait between attempts
+     * @param deadlineMillis  give up on a call if the next attempt would
+     *                        start this many milliseconds after the first
+     *                        one, or 0 for no deadline
+     */
+    public ExponentialBackoffRetryPolicy(final long baseDelayMillis, final long maxDelayMillis,
+                                         final long deadlineMillis) {
+        if ((baseDelayMillis < 0) || (maxDelayMillis < baseDelayMillis) || (deadlineMillis < 0)) {
+            throw new IllegalArgumentException("bad delays: base " + baseDelayMillis + ", max " + maxDelayMillis
+                    + ", deadline " + deadlineMillis);
+        }
+        this.baseDelay = baseDelayMillis;
+        this.maxDelay = maxDelayMillis;
+        this.deadline = deadlineMillis;
+    }
+
+    /**
+     * Allow at most this many retries per second across every call using
+     * this policy, plus a burst of up to the given number at once. Pass 0
+     * retries per second to turn the budget off, which is the default.
+     */
+    public void setRetryBudget(final double retriesPerSecond, final int burst) {
+        if ((retriesPerSecond < 0) || (burst < 1)) {
+            throw new IllegalArgumentException("bad retry budget: " + retriesPerSecond + "/s, burst " + burst);
+        }
+        if (retriesPerSecond == 0) {
+            budgetInterval = 0;
+            return;
+        }
+
+        long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / retriesPerSecond));
+        budgetTolerance = interval * (burst - 1);
+        budgetClock.set(System.nanoTime());
+        budgetInterval = interval;
+    }
+
+    public long getRetryDelay(final int failedAttempts, final long elapsedMillis) {
+        long ceiling = maxDelay;
+        int shift = failedAttempts - 1;
+        if ((shift < 62) && (baseDelay <= (maxDelay >> shift))) {
+            ceiling = baseDelay << shift;
+        }
+
+        long delay = (long) (Math.random() * (ceiling + 1));
+
+        if ((deadline > 0) && (elapsedMillis + delay >= deadline)) {
+            return -1;
+        }
+        if (!takeFromBudget()) {
+            return -1;
+        }
+
+        return delay;
+    }
+
+    private boolean takeFromBudget() {
+        long interval = budgetInterval;
+        if (interval == 0) {
+            return true;
+        }
+
+        while (true) {
+            long now = System.nanoTime();
+            long clock = budgetClock.get();
+            long next = ((clock - now > 0) ? clock : now) + interval;
+            if (next - now > budgetTolerance + interval) {
+                // we've used up the budget for now
+                return false;
+            }
+            if (budgetClock.compareAndSet(clock, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.guba.mogilefs;
+
+/**
+ * One page of keys from a list_keys request, along with the key to continue
+ * listing after.
+ */
+class KeyList {
+
+    private final String[] keys;
+    private final String after;
+
+    KeyList(final String[] keys, final String after) {
+        this.keys = keys;
+        this.after = after;
+    }
+
+    public String[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the key to ask for the next page after, or null if the tracker
+     *         didn't tell us
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * @return the keys and the after key, the way MogileFS.listKeys() hands
+     *         them out
+     */
+    public Object[] toArray() {
+        return new Object[]{keys, after};
+    }
+}
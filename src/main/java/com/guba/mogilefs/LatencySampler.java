@@ -0,0 +1,55 @@
+package com.guba.mogilefs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the last few latencies of something, so we can tell what a
+ * slow one looks like. Recording a sample is lock-free; working out a
+ * percentile copies and sorts the samples, which is cheap for the small
+ * number we keep.
+ */
+class LatencySampler {
+
+    private final AtomicLongArray samples;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    public LatencySampler(final int size) {
+        this.samples = new AtomicLongArray(size);
+    }
+
+    public void record(final long millis) {
+        int slot = count.getAndIncrement() % samples.length();
+        samples.set((slot < 0) ? slot + samples.length() : slot, millis);
+    }
+
+    /**
+     * @return number of samples we have, at most the size of the sampler
+     */
+    public int size() {
+        return Math.min(count.get() & Integer.MAX_VALUE, samples.length());
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency that the given share of samples are at or below,
+     *         or -1 if there are no samples yet
+     */
+    public long getPercentile(final double percentile) {
+        int size = size();
+        if (size == 0) {
+            return -1;
+        }
+
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+}
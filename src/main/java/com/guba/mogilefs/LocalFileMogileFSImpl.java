@@ -4,6 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class LocalFileMogileFSImpl implements MogileFS {
 
@@ -107,6 +112,28 @@ public class LocalFileMogileFSImpl implements MogileFS {
         }
     }
 
+    public long getFile(final String key, final WritableByteChannel destination)
+            throws NoTrackersException, TrackerCommunicationException,
+            IOException, StorageCommunicationException {
+        File storedFile = new File(domainDir, key);
+        if (!storedFile.exists()) {
+            return -1;
+        }
+
+        FileChannel in = new FileInputStream(storedFile).getChannel();
+        try {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, destination);
+            }
+            return size;
+
+        } finally {
+            in.close();
+        }
+    }
+
     public byte[] getFileBytes(final String key) throws NoTrackersException,
             TrackerCommunicationException, IOException,
             StorageCommunicationException {
@@ -124,6 +151,40 @@ public class LocalFileMogileFSImpl implements MogileFS {
         return buffer;
     }
 
+    public byte[] getFileBytes(final String key, final long offset, final long length)
+            throws NoTrackersException, TrackerCommunicationException, IOException,
+            StorageCommunicationException {
+        File storedFile = new File(domainDir, key);
+        if (!storedFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile in = new RandomAccessFile(storedFile, "r");
+
+        try {
+            long available = Math.max(0, in.length() - offset);
+            byte[] buffer = new byte[(int) ((length < 0) ? available : Math.min(length, available))];
+
+            in.seek(offset);
+            in.readFully(buffer);
+
+            return buffer;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    public InputStream getFileStream(final String key, final long offset, final long length)
+            throws NoTrackersException, TrackerCommunicationException, StorageCommunicationException {
+        try {
+            byte[] bytes = getFileBytes(key, offset, length);
+            return (bytes == null) ? null : new ByteArrayInputStream(bytes);
+        } catch (IOException e) {
+            throw new StorageCommunicationException(e.getMessage());
+        }
+    }
+
     public InputStream getFileStream(final String key) throws NoTrackersException,
             TrackerCommunicationException, StorageCommunicationException {
         // TODO Auto-generated method stub
@@ -166,6 +227,20 @@ public class LocalFileMogileFSImpl implements MogileFS {
         return new String[]{"file://" + storedFile.getAbsolutePath()};
     }
 
+    public Map<String, PathLookupResult> getPaths(final Collection<String> keys) throws NoTrackersException {
+        return getPaths(keys, false);
+    }
+
+    public Map<String, PathLookupResult> getPaths(final Collection<String> keys, final boolean noverify)
+            throws NoTrackersException {
+        Map<String, PathLookupResult> results = new LinkedHashMap<String, PathLookupResult>();
+        for (String key : keys) {
+            results.put(key, new PathLookupResult(key, getPaths(key, noverify), null, null));
+        }
+
+        return results;
+    }
+
     /**
      * Return the after key and a list of keys matching your key. Return
      * null if there was an error from the server.
@@ -198,6 +273,10 @@ public class LocalFileMogileFSImpl implements MogileFS {
         throw new UnsupportedOperationException();
     }
 
+    public void close() {
+        // nothing to close
+    }
+
     public MogileResponse storeStream(String key, String storageClass, InputStream is) throws MogileException {
         throw new UnsupportedOperationException();
     }
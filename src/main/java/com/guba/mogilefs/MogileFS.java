@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
 
 public interface MogileFS {
 
@@ -70,6 +73,20 @@ public interface MogileFS {
             throws NoTrackersException, TrackerCommunicationException,
             IOException, StorageCommunicationException;
 
+    /**
+     * Write a file to the given channel. Return the number of bytes written,
+     * or -1 if we couldn't find the object with the given key
+     *
+     * @param key
+     * @param destination
+     * @throws NoTrackersException
+     * @throws TrackerCommunicationException
+     */
+
+    public abstract long getFile(String key, WritableByteChannel destination)
+            throws NoTrackersException, TrackerCommunicationException,
+            IOException, StorageCommunicationException;
+
     /**
      * Read a file into memory.
      *
@@ -98,6 +115,35 @@ public interface MogileFS {
             throws NoTrackersException, TrackerCommunicationException,
             StorageCommunicationException;
 
+    /**
+     * Read part of a file into memory. Return null if the file doesn't
+     * exist.
+     *
+     * @param key
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     * @return
+     */
+
+    public abstract byte[] getFileBytes(String key, long offset, long length) throws NoTrackersException,
+            TrackerCommunicationException, IOException,
+            StorageCommunicationException;
+
+    /**
+     * Retrieve part of the data from some file. Return null if the file
+     * doesn't exist, or throw an exception if we just can't get it from
+     * any of the storage nodes
+     *
+     * @param key
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     * @return
+     */
+
+    public abstract InputStream getFileStream(String key, long offset, long length)
+            throws NoTrackersException, TrackerCommunicationException,
+            StorageCommunicationException;
+
     /**
      * Delete the given file. A non-existant file will not cause an error.
      *
@@ -141,6 +187,24 @@ public interface MogileFS {
     public abstract String[] getPaths(String key, boolean noverify)
             throws NoTrackersException;
 
+    public Map<String, PathLookupResult> getPaths(Collection<String> keys) throws NoTrackersException;
+
+    /**
+     * Look up the paths of a bunch of keys at once. This is a lot cheaper
+     * than calling getPaths(String, boolean) for every key. Errors are
+     * reported per key in the results, so one bad key doesn't fail the
+     * whole batch.
+     *
+     * @param keys     the keys to look up. Duplicates are only looked up once.
+     * @param noverify If true, then ask the server not to bother checking that the
+     *                 paths it's going to return are valid.
+     * @return one result per distinct key, in the order of the keys
+     * @throws NoTrackersException if we couldn't look up any of the keys
+     */
+
+    public Map<String, PathLookupResult> getPaths(Collection<String> keys, boolean noverify)
+            throws NoTrackersException;
+
     public Object[] listKeys(final String key) throws NoTrackersException;
 
     public Object[] listKeys(final String key, final int limit) throws NoTrackersException;
@@ -178,4 +242,10 @@ public interface MogileFS {
      * @param retrySleepTime
      */
     public void setRetryTimeout(final int retrySleepTime);
-}
\ No newline at end of file
+
+    /**
+     * Close the connections to the trackers and the storage nodes, and stop
+     * any background threads. Don't use this object after closing it.
+     */
+    public void close();
+}
@@ -35,7 +35,7 @@ public class MogileOutputStream extends OutputStream {
 
     /**
      * Number of milliseconds we'll let this socket block before we consider it
-     * timed out.
+     * timed out, unless the SocketConfig says otherwise.
      */
     public static final int SOCKET_TIMEOUT = 60000;
 
@@ -65,6 +65,13 @@ public class MogileOutputStream extends OutputStream {
                               final String path, final String devid, final String key,
                               final long totalBytes) throws MalformedURLException,
             StorageCommunicationException {
+        this(backendPool, new SocketConfig(), domain, fid, path, devid, key, totalBytes);
+    }
+
+    public MogileOutputStream(final ObjectPool backendPool, final SocketConfig socketConfig, final String domain,
+                              final String fid, final String path, final String devid, final String key,
+                              final long totalBytes) throws MalformedURLException,
+            StorageCommunicationException {
         this.backendPool = backendPool;
         this.domain = domain;
         this.fid = fid;
@@ -77,10 +84,10 @@ public class MogileOutputStream extends OutputStream {
         try {
             // open a connection to the server
             socket = new Socket();
-            socket.setSoTimeout(SOCKET_TIMEOUT);
+            socketConfig.applyToStorageSocket(socket);
             URL parsedPath = new URL(path);
             socket.connect(new InetSocketAddress(parsedPath.getHost(),
-                    parsedPath.getPort()));
+                    parsedPath.getPort()), socketConfig.getStorageConnectTimeout());
             out = socket.getOutputStream();
             reader = new BufferedReader(new InputStreamReader(socket
                     .getInputStream()));
@@ -6,8 +6,13 @@ import static org.apache.commons.cli.OptionBuilder.withDescription;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -36,7 +41,10 @@ public class Mogtool {
         String domain;
         private Options opts;
         private static final Pattern CONFIG_LINE = Pattern.compile("(\\w+)\\s*=\\s*(.+)");
+        private static final Pattern SIZE = Pattern.compile("(\\d+)([kKmMgG]?)");
         private boolean verify = false;
+        private boolean bigfile = false;
+        private long chunkSize = 0;
 
         @SuppressWarnings("static-access")
         MogToolOptions() {
@@ -51,6 +59,9 @@ public class Mogtool {
             opts.addOption(withArgName("configFile").withLongOpt("config").hasArg().withDescription("config file")
                     .create("conf"));
             opts.addOption(withDescription("should locate check the paths").withLongOpt("verify").create());
+            opts.addOption(withDescription("store or extract a big file in chunks").withLongOpt("bigfile").create("b"));
+            opts.addOption(withArgName("size").withLongOpt("chunksize").hasArg()
+                    .withDescription("size of the chunks of a big file, like 64M").create());
 
 
             opts.addOption("h", false, "Show help");
@@ -84,6 +95,8 @@ public class Mogtool {
             setDomain(line.getOptionValue("d"));
             setTrackers(line.getOptionValue("t"));
             setStorageClass(line.getOptionValue("c"));
+            bigfile = line.hasOption("b");
+            setChunkSize(line.getOptionValue("chunksize"));
 
 
             if (domain == null || trackers == null) {
@@ -101,6 +114,28 @@ public class Mogtool {
             }
         }
 
+        private void setChunkSize(final String val) {
+            if (val == null) {
+                return;
+            }
+            Matcher m = SIZE.matcher(val.trim());
+            if (!m.matches()) {
+                showUsage();
+                System.err.println("Bad chunk size: " + val);
+                System.exit(1);
+            }
+            long size = Long.parseLong(m.group(1));
+            String unit = m.group(2).toUpperCase();
+            if ("K".equals(unit)) {
+                size *= 1024;
+            } else if ("M".equals(unit)) {
+                size *= 1024 * 1024;
+            } else if ("G".equals(unit)) {
+                size *= 1024 * 1024 * 1024;
+            }
+            chunkSize = size;
+        }
+
         private void setDomain(final String val) {
             if (val != null) {
                 domain = val;
@@ -171,15 +206,18 @@ public class Mogtool {
                     "- delete thekey\n" +
                     "- locate thekey\n" +
                     "- listkey - TODO\n" +
-                    "Just like in the perl mogtool but without bigfiles.");
+                    "Just like in the perl mogtool. Use --bigfile to inject or extract a big file in chunks.");
 
 
         }
 
-        protected MogileFS createMogileFS() throws NoTrackersException, BadHostFormatException {
+        protected PooledMogileFSImpl createMogileFS() throws NoTrackersException, BadHostFormatException {
             final PooledMogileFSImpl mogFs = new PooledMogileFSImpl(domain, trackers, 5, 2, 30000);
             // The Perl mogTool doesn't retry if it breaks.
             mogFs.setMaxRetries(0);
+            if (chunkSize > 0) {
+                mogFs.setBigFileChunkSize(chunkSize);
+            }
             return mogFs;
         }
 
@@ -190,6 +228,10 @@ public class Mogtool {
         public boolean getVerify() {
             return verify;
         }
+
+        public boolean getBigfile() {
+            return bigfile;
+        }
     }
 
 
@@ -209,7 +251,11 @@ public class Mogtool {
                 return;
             }
             try {
-                inject(args[2], options.getStorageClass(), args[1], options.createMogileFS());
+                if (options.getBigfile()) {
+                    injectBigfile(args[2], options.getStorageClass(), args[1], options.createMogileFS());
+                } else {
+                    inject(args[2], options.getStorageClass(), args[1], options.createMogileFS());
+                }
             } catch (MogileException e) {
                 System.err.println("Error trying to inject file: " + e);
                 e.printStackTrace();
@@ -220,7 +266,11 @@ public class Mogtool {
                 return;
             }
             try {
-                extract(args[1], args[2], options.createMogileFS());
+                if (options.getBigfile()) {
+                    extractBigfile(args[1], args[2], options.createMogileFS());
+                } else {
+                    extract(args[1], args[2], options.createMogileFS());
+                }
             } catch (Exception e) {
                 System.err.println("Error trying to inject file: " + e);
                 e.printStackTrace();
@@ -270,10 +320,49 @@ public class Mogtool {
 
     private static void extract(final String key, final String file, final MogileFS mogileFS)
             throws IOException, StorageCommunicationException, TrackerCommunicationException, NoTrackersException {
-        mogileFS.getFile(key, new File(file));
+        if ("-".equals(file)) {
+            // like the perl mogtool, '-' extracts to stdout
+            WritableByteChannel out = Channels.newChannel(System.out);
+            mogileFS.getFile(key, out);
+            System.out.flush();
+        } else {
+            mogileFS.getFile(key, new File(file));
+        }
     }
 
 
+    private static void extractBigfile(final String key, final String file, final PooledMogileFSImpl mogileFS)
+            throws IOException, MogileException {
+        InputStream in = mogileFS.getBigFileStream(key);
+        if (in == null) {
+            throw new FileNotFoundException("no big file with key " + key);
+        }
+
+        OutputStream out = "-".equals(file) ? System.out : new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            if (out == System.out) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        }
+    }
+
+    public static void injectBigfile(final String key, final String storageClass, final String filename,
+                                     final PooledMogileFSImpl mogileFS) throws MogileException {
+
+        File file = new File(filename);
+        System.out.println("storing " + file + " as big file " + key + " to " + mogileFS);
+        mogileFS.storeBigFile(key, storageClass, file);
+    }
+
     public static void inject(final String key, final String storageClass, final String filename,
                               final MogileFS mogileFS) throws MogileException {
 
@@ -0,0 +1,55 @@
+package com.guba.mogilefs;
+
+/**
+ * What a batch path lookup found out about one key: either the paths of the
+ * key, or the error the tracker gave us for it.
+ *
+ * @see MogileFS#getPaths(java.util.Collection, boolean)
+ */
+public class PathLookupResult {
+
+    private final String key;
+    private final String[] paths;
+    private final String err;
+    private final String errStr;
+
+    PathLookupResult(final String key, final String[] paths, final String err, final String errStr) {
+        this.key = key;
+        this.paths = paths;
+        this.err = err;
+        this.errStr = errStr;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return URLs the file is stored at, or null if the lookup failed
+     */
+    public String[] getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return true if we got paths for the key
+     */
+    public boolean isFound() {
+        return paths != null;
+    }
+
+    /**
+     * @return the error code, like 'unknown_key', or null if the lookup
+     *         worked
+     */
+    public String getErr() {
+        return err;
+    }
+
+    /**
+     * @return the description of the error, or null if the lookup worked
+     */
+    public String getErrStr() {
+        return errStr;
+    }
+}
@@ -11,17 +11,38 @@ public class PoolableBackendFactory implements PoolableObjectFactory {
 
     private static final Logger log = LoggerFactory.getLogger(PoolableObjectFactory.class);
 
-    private List<InetSocketAddress> trackers;
+    private TrackerHealth trackerHealth;
+
+    private SocketConfig socketConfig;
+
+    private long maxConnectionAge;
+
+    private long rebalanceInterval;
 
     public PoolableBackendFactory(final List<InetSocketAddress> trackers) {
+        this(new TrackerHealth(trackers));
+    }
+
+    PoolableBackendFactory(final TrackerHealth trackerHealth) {
+        this(trackerHealth, new SocketConfig());
+    }
+
+    PoolableBackendFactory(final TrackerHealth trackerHealth, final SocketConfig socketConfig) {
         log.debug("new backend factory created");
 
-        this.trackers = trackers;
+        this.trackerHealth = trackerHealth;
+        this.socketConfig = socketConfig;
     }
 
     public Object makeObject() throws Exception {
         try {
-            Backend backend = new Backend(trackers, true);
+            Backend backend = new Backend(trackerHealth, socketConfig, true);
+
+            if (maxConnectionAge > 0) {
+                // spread the expiry times out so connections don't all get recycled at once
+                long age = maxConnectionAge - (long) (Math.random() * maxConnectionAge / 5);
+                backend.setExpiresAt(System.currentTimeMillis() + age);
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("making object " + backend.toString());
@@ -46,9 +67,57 @@ public class PoolableBackendFactory implements PoolableObjectFactory {
         }
     }
 
+    /**
+     * Retire connections after roughly this many milliseconds, so they get
+     * reopened to whichever tracker is the best pick at that time. Each
+     * connection gets a lifetime between 80% and 100% of this. 0 (the
+     * default) means connections live as long as they work.
+     *
+     * @param maxConnectionAge
+     */
+    public void setMaxConnectionAge(final long maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+    /**
+     * If a tracker has more than its share of our connections, retire one
+     * of them at most once per this many milliseconds. 0 (the default)
+     * turns rebalancing off.
+     *
+     * @param rebalanceInterval
+     */
+    public void setRebalanceInterval(final long rebalanceInterval) {
+        this.rebalanceInterval = rebalanceInterval;
+    }
+
     public boolean validateObject(final Object obj) {
         if (obj instanceof Backend) {
             Backend backend = (Backend) obj;
+            long now = System.currentTimeMillis();
+
+            if (backend.isExpired(now)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("retiring " + obj.toString() + " after " + backend.getConnectionAge(now) + "ms");
+                }
+                return false;
+            }
+
+            if (trackerHealth.isMuchWorse(backend.getTrackerIndex(), now)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("retiring " + obj.toString() + " because " + backend.getTracker()
+                            + " is doing much worse than the other trackers");
+                }
+                return false;
+            }
+
+            if ((rebalanceInterval > 0)
+                    && trackerHealth.shouldRebalance(backend.getTrackerIndex(), now, rebalanceInterval)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("retiring " + obj.toString() + " to rebalance connections to " + backend.getTracker());
+                }
+                return false;
+            }
+
             boolean connected = backend.isConnected();
 
             if (log.isDebugEnabled()) {
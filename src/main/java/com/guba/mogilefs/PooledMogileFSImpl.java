@@ -6,7 +6,15 @@
 package com.guba.mogilefs;
 
 import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MogileFS implementation that keeps a pool of tracker connections
@@ -16,10 +24,20 @@ import org.apache.commons.pool.impl.GenericObjectPool;
  */
 public class PooledMogileFSImpl extends BaseMogileFSImpl {
 
+    private static final Logger log = LoggerFactory.getLogger(PooledMogileFSImpl.class);
+
     private int maxTrackerConnections;
     private int maxIdleConnections;
     private long maxIdleTimeMillis;
 
+    private boolean threadAffinity = true;
+
+    private long maxConnectionAge;
+
+    private long rebalanceInterval;
+
+    private TrackerProber trackerProber;
+
 
     /**
      * Set things up. Make sure you pass in at least one valid tracker, or
@@ -63,24 +81,158 @@ public class PooledMogileFSImpl extends BaseMogileFSImpl {
         this.maxIdleConnections = maxIdleConnections;
         this.maxTrackerConnections = maxTrackerConnections;
         this.maxIdleTimeMillis = maxIdleTimeMillis;
+
+        // batch lookups may use a few connections of the pool
+        setBatchParallelism((maxTrackerConnections > 0) ? Math.min(4, maxTrackerConnections) : 4);
+    }
+
+    /**
+     * Open tracker connections ahead of time, so the first requests after
+     * startup don't have to wait for them. The connections are opened in
+     * parallel and put into the pool as idle connections. Call this right
+     * after constructing the client, before it takes traffic.
+     *
+     * @param connections   how many connections to open. This is capped at the
+     *                      max number of tracker connections and idle connections.
+     * @param timeoutMillis how long to wait for the connections. Connections that
+     *                      aren't ready by then keep going in the background.
+     * @return the number of connections that were ready before the timeout
+     */
+    public int warmUp(int connections, final long timeoutMillis) throws InterruptedException {
+        if ((maxTrackerConnections > 0) && (connections > maxTrackerConnections)) {
+            connections = maxTrackerConnections;
+        }
+        if ((maxIdleConnections >= 0) && (connections > maxIdleConnections)) {
+            connections = maxIdleConnections;
+        }
+        if (connections <= 0) {
+            return 0;
+        }
+
+        final ObjectPool pool = getBackendPool();
+        final AtomicInteger ready = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(connections);
+
+        ExecutorService executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "mogilefs-warmup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (int i = 0; i < connections; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        pool.addObject();
+                        ready.incrementAndGet();
+                    } catch (Exception e) {
+                        log.warn("unable to open tracker connection during warm up", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        int count = ready.get();
+        log.info("warmed up " + count + " of " + connections + " tracker connections");
+
+        return count;
+    }
+
+    /**
+     * Start checking on the trackers from a background thread every
+     * intervalMillis milliseconds. While this is running, a tracker that
+     * failed is left alone until it answers the prober again, instead of
+     * request threads retrying it every 5 seconds.
+     *
+     * @param intervalMillis time between probes of all trackers
+     */
+    public synchronized void startTrackerProber(final long intervalMillis) {
+        stopTrackerProber();
+
+        trackerProber = new TrackerProber(trackerHealth, intervalMillis);
+    }
+
+    /**
+     * Stop the background tracker checks, if they're running.
+     */
+    public synchronized void stopTrackerProber() {
+        if (trackerProber != null) {
+            trackerProber.shutdown();
+            trackerProber = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopTrackerProber();
+        super.close();
+    }
+
+    @Override
+    protected synchronized void reload(final String domain) throws NoTrackersException {
+        super.reload(domain);
+
+        if (trackerProber != null) {
+            trackerProber.setTrackerHealth(trackerHealth);
+        }
+    }
+
+    /**
+     * Whether a thread should first try to get back the tracker connection
+     * it used last. This keeps borrowing off the shared idle queue for
+     * threads that make one request after the other. Defaults to true. Takes
+     * effect the next time the pool is built.
+     *
+     * @param threadAffinity
+     */
+    public void setThreadAffinity(final boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Close tracker connections after they've been open for roughly this
+     * many milliseconds, so that over time they spread over the trackers
+     * again, e.g. after a tracker restart. 0 (the default) keeps connections
+     * for as long as they work. Takes effect the next time the pool is built.
+     *
+     * @param maxConnectionAge
+     */
+    public void setMaxConnectionAge(final long maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+    /**
+     * Move one connection from a tracker that has more than its share of
+     * connections to another tracker at most once per this many
+     * milliseconds. 0 (the default) turns this off. Takes effect the next
+     * time the pool is built.
+     *
+     * @param rebalanceInterval
+     */
+    public void setRebalanceInterval(final long rebalanceInterval) {
+        this.rebalanceInterval = rebalanceInterval;
     }
 
     @Override
     protected ObjectPool buildBackendPool() {
+        PoolableBackendFactory factory = new PoolableBackendFactory(trackerHealth, socketConfig);
+        factory.setMaxConnectionAge(maxConnectionAge);
+        factory.setRebalanceInterval(rebalanceInterval);
+
         // create a new pool of Backend objects
-        return new GenericObjectPool(new PoolableBackendFactory(trackers),
+        return new BackendPool(factory,
                 maxTrackerConnections,
-                GenericObjectPool.WHEN_EXHAUSTED_BLOCK,
-                1000 * 60,  // wait for up to 60 seconds if we run out
                 maxIdleConnections,
-                1,     // minIdle (** 1? **)
-                true, // test on borrow
-                true, // test on return
-                20 * 1000, // time between eviction runs millis
-                -1,  // number of tests per eviction run
-                maxIdleTimeMillis, // number of seconds before an object is considered idle
-                true, // test while idle
-                5 * 1000); //softMinEvictableIdleTimeMillis
+                1000 * 60,  // wait for up to 60 seconds if we run out
+                maxIdleTimeMillis, // number of millis before an idle object is discarded
+                threadAffinity);
     }
 
 }
@@ -0,0 +1,78 @@
+package com.guba.mogilefs;
+
+import java.util.Map;
+
+/**
+ * Turns the arguments of an OK response sitting in a TrackerCodec into
+ * whatever the caller wants to work with. The decoders for get_paths and
+ * list_keys build their arrays straight from the response line, without
+ * going through a Map and looking up "path" + i for every entry.
+ */
+interface ResponseDecoder<T> {
+
+    /**
+     * Decodes into a Map of all key, value pairs, just like doRequest
+     * always did.
+     */
+    ResponseDecoder<Map<String, String>> MAP = new ResponseDecoder<Map<String, String>>() {
+        public Map<String, String> decode(final TrackerCodec codec) {
+            return codec.decodeArgs();
+        }
+    };
+
+    /**
+     * Decodes a get_paths response (paths=N&path1=...&pathN=...) into an
+     * array of N paths.
+     */
+    ResponseDecoder<String[]> PATHS = new ResponseDecoder<String[]>() {
+        public String[] decode(final TrackerCodec codec) {
+            int count = codec.intArg("paths");
+            if (count < 0) {
+                return null;
+            }
+
+            String[] paths = new String[count];
+            while (codec.nextArg()) {
+                int index = codec.keyIndex("path");
+                if ((index > 0) && (index <= count)) {
+                    paths[index - 1] = codec.value();
+                }
+            }
+            return paths;
+        }
+    };
+
+    /**
+     * Decodes a list_keys response (key_count=N&key_1=...&key_N=...) into
+     * the N keys and the key to continue listing after. The tracker calls
+     * the latter next_after, older versions of this client looked for
+     * after_key, so we take either.
+     */
+    ResponseDecoder<KeyList> LIST_KEYS = new ResponseDecoder<KeyList>() {
+        public KeyList decode(final TrackerCodec codec) {
+            int count = codec.intArg("key_count");
+            if (count < 0) {
+                return null;
+            }
+
+            String[] keys = new String[count];
+            String afterKey = null;
+            while (codec.nextArg()) {
+                int index = codec.keyIndex("key_");
+                if ((index > 0) && (index <= count)) {
+                    keys[index - 1] = codec.value();
+                } else if (codec.keyEquals("after_key") || codec.keyEquals("next_after")) {
+                    afterKey = codec.value();
+                }
+            }
+            return new KeyList(keys, afterKey);
+        }
+    };
+
+    /**
+     * @return the decoded response, or null if the response didn't have
+     *         what we expected in it
+     */
+    T decode(TrackerCodec codec);
+
+}
@@ -0,0 +1,24 @@
+package com.guba.mogilefs;
+
+/**
+ * Decides whether, and how soon, a failed call to the trackers is tried
+ * again. One policy is shared by all the threads using a client, so it has
+ * to be thread-safe. The max retries of the client still limit the number
+ * of attempts, whatever the policy says.
+ *
+ * @see BaseMogileFSImpl#setRetryPolicy(RetryPolicy)
+ * @see ExponentialBackoffRetryPolicy
+ */
+public interface RetryPolicy {
+
+    /**
+     * Called each time an attempt of a call failed.
+     *
+     * @param failedAttempts how many attempts of this call failed so far,
+     *                       starting at 1
+     * @param elapsedMillis  how long ago the first attempt of this call
+     *                       started
+     * @return milliseconds to wait before the next attempt, or -1 to give up
+     */
+    public long getRetryDelay(int failedAttempts, long elapsedMillis);
+}
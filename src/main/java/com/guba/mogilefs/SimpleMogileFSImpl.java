@@ -32,7 +32,7 @@ public class SimpleMogileFSImpl extends BaseMogileFSImpl {
 
             public Object borrowObject() throws Exception {
                 if (backend == null) {
-                    backend = new Backend(trackers, true);
+                    backend = new Backend(trackerHealth, socketConfig, true);
                 }
 
                 return backend;
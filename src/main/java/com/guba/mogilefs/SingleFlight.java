@@ -0,0 +1,75 @@
+package com.guba.mogilefs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes concurrent calls for the same key share one execution. The first
+ * thread to ask for a key runs the call, and every thread that asks for the
+ * same key while that is still going on waits for it and gets its result
+ * (or its exception) instead of running the call again. Waiting threads get
+ * a copy of the result, so nobody can mess up the value another caller got.
+ */
+abstract class SingleFlight<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> calls = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Run the call, or wait for the one already running for the key.
+     *
+     * @throws Exception whatever the call threw
+     */
+    public V execute(final String key, final Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = calls.putIfAbsent(key, task);
+
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+            return getResult(task);
+        }
+
+        return copy(getResult(running));
+    }
+
+    /**
+     * @return a copy of the value that is safe to hand to another caller
+     */
+    protected abstract V copy(V value);
+
+    /**
+     * Wait for the task without giving up on interrupts, since the thread
+     * running it is only bound by socket timeouts anyway.
+     */
+    private V getResult(final FutureTask<V> task) throws Exception {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
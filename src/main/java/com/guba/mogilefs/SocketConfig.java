@@ -0,0 +1,256 @@
+package com.guba.mogilefs;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Socket options for the connections to the trackers and the storage nodes.
+ * One instance is shared by everything a MogileFS client opens, and changes
+ * are picked up by sockets opened afterwards. Read timeouts for tracker
+ * commands can be set per command, so e.g. 'get_paths' can give up long
+ * before a 'create_close' would.
+ * <p/>
+ * TCP_NODELAY is on by default, since tracker requests are single short
+ * lines that Nagle's algorithm would otherwise hold back. Send and receive
+ * buffer sizes are left to the OS unless set.
+ */
+public class SocketConfig {
+
+    private volatile int trackerConnectTimeout = 3000;
+
+    private volatile int trackerSoTimeout = 30000;
+
+    private volatile int storageConnectTimeout = 8000;
+
+    private volatile int storageSoTimeout = MogileOutputStream.SOCKET_TIMEOUT;
+
+    private volatile boolean tcpNoDelay = true;
+
+    private volatile boolean keepAlive;
+
+    private volatile int sendBufferSize;
+
+    private volatile int receiveBufferSize;
+
+    private final Map<String, Integer> commandTimeouts = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * How long to wait for a connection to a tracker, in milliseconds.
+     * Defaults to 3 seconds.
+     *
+     * @param trackerConnectTimeout
+     */
+    public void setTrackerConnectTimeout(final int trackerConnectTimeout) {
+        this.trackerConnectTimeout = trackerConnectTimeout;
+    }
+
+    public int getTrackerConnectTimeout() {
+        return trackerConnectTimeout;
+    }
+
+    /**
+     * How long to wait for a tracker to answer a command that has no
+     * timeout of its own, in milliseconds. Defaults to 30 seconds.
+     *
+     * @param trackerSoTimeout
+     */
+    public void setTrackerSoTimeout(final int trackerSoTimeout) {
+        this.trackerSoTimeout = trackerSoTimeout;
+    }
+
+    public int getTrackerSoTimeout() {
+        return trackerSoTimeout;
+    }
+
+    /**
+     * How long to wait for a tracker to answer the given command, in
+     * milliseconds. 0 means wait forever, a negative value goes back to
+     * the tracker socket timeout.
+     *
+     * @param command  the tracker command, like 'get_paths'
+     * @param timeout
+     */
+    public void setCommandTimeout(final String command, final int timeout) {
+        if (timeout < 0) {
+            commandTimeouts.remove(command);
+        } else {
+            commandTimeouts.put(command, timeout);
+        }
+    }
+
+    /**
+     * @return the read timeout for the given tracker command
+     */
+    public int getCommandTimeout(final String command) {
+        Integer timeout = commandTimeouts.get(command);
+        return (timeout == null) ? trackerSoTimeout : timeout;
+    }
+
+    /**
+     * How long to wait for a connection to a storage node, in
+     * milliseconds. Defaults to 8 seconds.
+     *
+     * @param storageConnectTimeout
+     */
+    public void setStorageConnectTimeout(final int storageConnectTimeout) {
+        this.storageConnectTimeout = storageConnectTimeout;
+    }
+
+    public int getStorageConnectTimeout() {
+        return storageConnectTimeout;
+    }
+
+    /**
+     * How long a read from or write to a storage node may block, in
+     * milliseconds. Defaults to 60 seconds.
+     *
+     * @param storageSoTimeout
+     */
+    public void setStorageSoTimeout(final int storageSoTimeout) {
+        this.storageSoTimeout = storageSoTimeout;
+    }
+
+    public int getStorageSoTimeout() {
+        return storageSoTimeout;
+    }
+
+    public void setTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setKeepAlive(final boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * SO_SNDBUF in bytes, or 0 to leave it to the OS. A bigger buffer helps
+     * uploading large files to storage nodes that are far away.
+     *
+     * @param sendBufferSize
+     */
+    public void setSendBufferSize(final int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * SO_RCVBUF in bytes, or 0 to leave it to the OS.
+     *
+     * @param receiveBufferSize
+     */
+    public void setReceiveBufferSize(final int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Set the options on a tracker socket that isn't connected yet.
+     */
+    void applyToTrackerSocket(final Socket socket) throws SocketException {
+        socket.setSoTimeout(trackerSoTimeout);
+        applyCommon(socket);
+    }
+
+    /**
+     * Set the options on a storage node socket that isn't connected yet.
+     */
+    void applyToStorageSocket(final Socket socket) throws SocketException {
+        socket.setSoTimeout(storageSoTimeout);
+        applyCommon(socket);
+    }
+
+    /**
+     * Set the storage node options on the parameters of an HttpClient:
+     * the timeouts, TCP_NODELAY and, if a send or receive buffer size is
+     * set, a matching buffer for the HTTP connection. HttpClient has no
+     * parameters for SO_KEEPALIVE, SO_SNDBUF and SO_RCVBUF, those are set
+     * on the sockets by the scheme registry from
+     * createStorageSchemeRegistry().
+     */
+    void applyToStorageParams(final HttpParams params) {
+        HttpConnectionParams.setConnectionTimeout(params, storageConnectTimeout);
+        HttpConnectionParams.setSoTimeout(params, storageSoTimeout);
+        HttpConnectionParams.setTcpNoDelay(params, tcpNoDelay);
+
+        int bufferSize = Math.max(sendBufferSize, receiveBufferSize);
+        if (bufferSize > 0) {
+            HttpConnectionParams.setSocketBufferSize(params, bufferSize);
+        }
+    }
+
+    /**
+     * Return the schemes for an HttpClient talking to storage nodes, with
+     * plain http sockets that get all of our storage node options before
+     * they connect.
+     */
+    SchemeRegistry createStorageSchemeRegistry() {
+        SchemeRegistry registry = SchemeRegistryFactory.createDefault();
+        registry.register(new Scheme("http", 80, new StorageSocketFactory()));
+        return registry;
+    }
+
+    private void applyCommon(final Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+
+        // buffer sizes have to be set before connecting to take part in the window negotiation
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Makes plain sockets like PlainSocketFactory, with the storage node
+     * options set.
+     */
+    private class StorageSocketFactory implements SchemeSocketFactory {
+
+        private final PlainSocketFactory plain = PlainSocketFactory.getSocketFactory();
+
+        public Socket createSocket(final HttpParams params) throws IOException {
+            Socket socket = new Socket();
+            applyToStorageSocket(socket);
+            return socket;
+        }
+
+        public Socket connectSocket(final Socket socket, final InetSocketAddress remoteAddress,
+                                    final InetSocketAddress localAddress, final HttpParams params)
+                throws IOException, ConnectTimeoutException {
+            return plain.connectSocket(socket, remoteAddress, localAddress, params);
+        }
+
+        public boolean isSecure(final Socket socket) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.guba.mogilefs;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A GET of a file, or a byte range of it, from a storage node. Creating one
+ * doesn't touch the network yet; connect() sends the request and waits for
+ * the response headers. abort() may be called from another thread at any
+ * time to give up on the request and drop its connection.
+ * <p/>
+ * Requests go through the pooled HttpClient of the MogileFS client, so the
+ * connection goes back to the pool once the body has been read and closed.
+ * Closing the body before the end drops the connection instead of reading
+ * the rest of a possibly huge file just to keep it.
+ */
+class StorageResponse {
+
+    private final String path;
+
+    private final HttpClient client;
+
+    private final HttpGet request;
+
+    private final boolean ranged;
+
+    private volatile boolean aborted;
+
+    private int status;
+
+    private long contentLength = -1;
+
+    private long totalLength = -1;
+
+    private InputStream body;
+
+    /**
+     * @param offset where to start reading
+     * @param length how many bytes to read, or -1 for the rest of the file
+     */
+    public StorageResponse(final String path, final HttpClient client, final SocketConfig socketConfig,
+                           final long offset, final long length) {
+        this.path = path;
+        this.client = client;
+
+        this.request = new HttpGet(path);
+        // set per request, so changes to the config apply to the long-lived client too
+        HttpConnectionParams.setConnectionTimeout(request.getParams(), socketConfig.getStorageConnectTimeout());
+        HttpConnectionParams.setSoTimeout(request.getParams(), socketConfig.getStorageSoTimeout());
+
+        this.ranged = (offset > 0) || (length >= 0);
+        if (ranged) {
+            request.setHeader("Range", "bytes=" + offset + "-" + ((length < 0) ? "" : offset + length - 1));
+        }
+    }
+
+    /**
+     * Send the request and wait for the headers of the response.
+     *
+     * @throws IOException if we couldn't get the file from this storage node
+     */
+    public void connect() throws IOException {
+        try {
+            HttpResponse response = client.execute(request);
+            HttpEntity entity = response.getEntity();
+            status = response.getStatusLine().getStatusCode();
+
+            if ((status < 200) || (status > 299) || (entity == null)) {
+                // read the error page, so the connection can be used again
+                EntityUtils.consume(entity);
+                throw new IOException("storage node answered " + status + " for " + path);
+            }
+            if (ranged && (status != HttpStatus.SC_PARTIAL_CONTENT)) {
+                // we'd get the whole file instead of the part we asked for
+                throw new IOException("storage node ignored range request for " + path);
+            }
+
+            contentLength = entity.getContentLength();
+
+            if (ranged) {
+                // Content-Range: bytes 0-1023/5000, where the total may be '*'
+                Header rangeHeader = response.getFirstHeader("Content-Range");
+                String range = (rangeHeader == null) ? null : rangeHeader.getValue();
+                int slash = (range == null) ? -1 : range.lastIndexOf('/');
+                if ((slash >= 0) && !range.endsWith("*")) {
+                    totalLength = Long.parseLong(range.substring(slash + 1).trim());
+                }
+            } else {
+                totalLength = contentLength;
+            }
+
+            body = new BodyInputStream(entity.getContent());
+
+        } catch (NumberFormatException e) {
+            abort();
+            throw new IOException("bad content range from " + path);
+
+        } catch (IOException e) {
+            abort();
+            throw e;
+
+        } catch (RuntimeException e) {
+            // HttpClient throws these for bad URLs and protocol errors
+            abort();
+            throw new IOException("problem requesting " + path + ": " + e.getMessage());
+        }
+
+        if (aborted) {
+            // somebody gave up on us while we were connecting
+            abort();
+            throw new IOException("request for " + path + " was aborted");
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the length of the body, or -1 if the storage node didn't say
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the length of the whole file, even for a range request, or -1
+     *         if the storage node didn't say
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Give up on this request and close its connection.
+     */
+    public void abort() {
+        aborted = true;
+        request.abort();
+    }
+
+    /**
+     * Hands the connection back to the pool if the body was read to the
+     * end, and drops it otherwise.
+     */
+    private class BodyInputStream extends FilterInputStream {
+
+        private long consumed;
+
+        private boolean eof;
+
+        BodyInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                eof = true;
+            } else {
+                consumed++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count < 0) {
+                eof = true;
+            } else {
+                consumed += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            consumed += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!eof && ((contentLength < 0) || (consumed < contentLength))) {
+                // aborting released the connection already, and reading
+                // the rest of the body from it would only fail
+                abort();
+                return;
+            }
+            super.close();
+        }
+    }
+}
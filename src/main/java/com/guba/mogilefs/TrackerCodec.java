@@ -0,0 +1,563 @@
+package com.guba.mogilefs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoder and decoder for the tracker line protocol. Requests are encoded
+ * straight into a reusable byte buffer, and responses are read into a
+ * reusable line buffer and decoded in a single pass, without regular
+ * expressions, String.split() or URLDecoder. The only objects created while
+ * decoding are the keys and values handed back to the caller.
+ * <p/>
+ * Encoding is byte-for-byte compatible with URLEncoder.encode(value, "UTF-8"),
+ * decoding with URLDecoder.decode(value, "UTF-8").
+ * <p/>
+ * Like the Backend that owns it, this is most definitely _not_ thread safe.
+ */
+class TrackerCodec {
+
+    public static final int RESPONSE_INVALID = 0;
+
+    public static final int RESPONSE_OK = 1;
+
+    public static final int RESPONSE_ERR = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+            'E', 'F'};
+
+    /* characters URLEncoder passes through untouched */
+    private static final boolean[] SAFE = new boolean[128];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            SAFE[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            SAFE[c] = true;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            SAFE[c] = true;
+        }
+        SAFE['.'] = true;
+        SAFE['-'] = true;
+        SAFE['*'] = true;
+        SAFE['_'] = true;
+    }
+
+    private byte[] request = new byte[512];
+
+    private int requestLength;
+
+    private byte[] input = new byte[8192];
+
+    private int inputPos;
+
+    private int inputLimit;
+
+    private byte[] line = new byte[1024];
+
+    private int lineLength;
+
+    private byte[] scratch = new byte[256];
+
+    /* where the args part of an OK line starts */
+    private int argsStart;
+
+    /* position of the next key=value pair in the args part of an OK line */
+    private int argsPos;
+
+    private int keyStart;
+
+    private int keyEnd;
+
+    private int valueStart;
+
+    private int valueEnd;
+
+    private String err;
+
+    private String errStr;
+
+    /**
+     * Throw away any encoded requests.
+     */
+    public void clearRequest() {
+        requestLength = 0;
+    }
+
+    /**
+     * Append one request line for the given command to the request buffer.
+     * Call this several times before writeRequest() to pipeline requests.
+     *
+     * @param command
+     * @param args    key, value pairs
+     */
+    public void encodeRequest(final String command, final String[] args) {
+        appendAscii(command);
+        appendByte(' ');
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i > 0) {
+                appendByte('&');
+            }
+            appendAscii(args[i]);
+            appendByte('=');
+            appendEncoded(args[i + 1]);
+        }
+
+        appendByte('\r');
+        appendByte('\n');
+    }
+
+    /**
+     * Write out and flush everything in the request buffer.
+     */
+    public void writeRequest(final OutputStream out) throws IOException {
+        out.write(request, 0, requestLength);
+        out.flush();
+    }
+
+    /**
+     * Forget about any buffered input. Must be called whenever we start
+     * reading from a different connection.
+     */
+    public void resetInput() {
+        inputPos = 0;
+        inputLimit = 0;
+        lineLength = 0;
+    }
+
+    /**
+     * Read the next response line from the tracker into the line buffer and
+     * figure out what kind of response it is. For an OK response the
+     * arguments can then be walked with nextArg(), for an ERR response the
+     * error is available from getErr() and getErrStr().
+     *
+     * @return RESPONSE_OK, RESPONSE_ERR or RESPONSE_INVALID
+     * @throws EOFException if the tracker closed the connection
+     */
+    public int readResponse(final InputStream in) throws IOException {
+        readLine(in);
+
+        return parseStatus();
+    }
+
+    /**
+     * Move to the next key=value pair of an OK response. Pairs that aren't
+     * properly encoded or have an empty value are skipped, just like the old
+     * String.split() based decoder did.
+     *
+     * @return false if there are no more pairs
+     */
+    public boolean nextArg() {
+        while (argsPos < lineLength) {
+            int start = argsPos;
+            int end = start;
+            int equals = -1;
+            int equalsCount = 0;
+            while ((end < lineLength) && (line[end] != '&')) {
+                if (line[end] == '=') {
+                    if (equals < 0) {
+                        equals = end;
+                    }
+                    equalsCount++;
+                }
+                end++;
+            }
+            argsPos = end + 1;
+
+            if ((equalsCount == 1) && (equals > start) && (equals < end - 1)) {
+                keyStart = start;
+                keyEnd = equals;
+                valueStart = equals + 1;
+                valueEnd = end;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Go back to the first key=value pair of an OK response.
+     */
+    public void rewindArgs() {
+        argsPos = argsStart;
+    }
+
+    /**
+     * Look up a numeric argument of an OK response, like the "paths" count
+     * of a get_paths response. Afterwards the pairs can be walked from the
+     * start again.
+     *
+     * @return the value, or -1 if it is missing or not a number
+     */
+    public int intArg(final String name) {
+        rewindArgs();
+
+        int value = -1;
+        while (nextArg()) {
+            if (keyEquals(name)) {
+                value = intValue();
+                break;
+            }
+        }
+
+        rewindArgs();
+        return value;
+    }
+
+    /**
+     * Does the key of the current pair equal the given (ASCII) name?
+     */
+    public boolean keyEquals(final String name) {
+        int length = keyEnd - keyStart;
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line[keyStart + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * If the key of the current pair is the given prefix followed by a
+     * decimal number (like "path3" or "key_12"), return that number.
+     *
+     * @return the number, or -1 if the key doesn't look like that
+     */
+    public int keyIndex(final String prefix) {
+        int prefixLength = prefix.length();
+        if (keyEnd - keyStart <= prefixLength) {
+            return -1;
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            if (line[keyStart + i] != prefix.charAt(i)) {
+                return -1;
+            }
+        }
+        return parseInt(keyStart + prefixLength, keyEnd);
+    }
+
+    /**
+     * @return the key of the current pair
+     */
+    public String key() {
+        return new String(line, keyStart, keyEnd - keyStart, UTF_8);
+    }
+
+    /**
+     * @return the url-decoded value of the current pair
+     */
+    public String value() {
+        return decode(valueStart, valueEnd);
+    }
+
+    /**
+     * @return the value of the current pair as a non-negative number, or -1
+     *         if it isn't one
+     */
+    public int intValue() {
+        return parseInt(valueStart, valueEnd);
+    }
+
+    /**
+     * Decode all remaining pairs of an OK response into a map.
+     */
+    public Map<String, String> decodeArgs() {
+        Map<String, String> map = new HashMap<String, String>();
+        while (nextArg()) {
+            map.put(key(), value());
+        }
+        return map;
+    }
+
+    /**
+     * @return error code of the last ERR response
+     */
+    public String getErr() {
+        return err;
+    }
+
+    /**
+     * @return error string of the last ERR response, still url-encoded
+     */
+    public String getErrStr() {
+        return errStr;
+    }
+
+    /**
+     * @return the last response line, for logging and error messages
+     */
+    public String getResponseLine() {
+        return new String(line, 0, lineLength, UTF_8);
+    }
+
+    /**
+     * Read up to the next '\n' into the line buffer, dropping the line
+     * terminator.
+     */
+    private void readLine(final InputStream in) throws IOException {
+        lineLength = 0;
+
+        while (true) {
+            if (inputPos >= inputLimit) {
+                int count = in.read(input, 0, input.length);
+                if (count < 0) {
+                    throw new EOFException("connection closed by tracker");
+                }
+                inputPos = 0;
+                inputLimit = count;
+            }
+
+            int start = inputPos;
+            while ((inputPos < inputLimit) && (input[inputPos] != '\n')) {
+                inputPos++;
+            }
+
+            int count = inputPos - start;
+            if (lineLength + count > line.length) {
+                line = grow(line, lineLength + count);
+            }
+            System.arraycopy(input, start, line, lineLength, count);
+            lineLength += count;
+
+            if (inputPos < inputLimit) {
+                // skip the '\n'
+                inputPos++;
+                if ((lineLength > 0) && (line[lineLength - 1] == '\r')) {
+                    lineLength--;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Look at the line buffer and decide whether this is an OK or an ERR
+     * response. Set up argsPos for an OK, err and errStr for an ERR.
+     */
+    private int parseStatus() {
+        err = null;
+        errStr = null;
+        argsStart = lineLength;
+        argsPos = lineLength;
+
+        if (startsWith("OK") && (lineLength == 2 || isSpace(line[2]))) {
+            int pos = skipSpace(2);
+
+            // an optional numeric field precedes the arguments
+            int digits = pos;
+            while ((digits < lineLength) && (line[digits] >= '0') && (line[digits] <= '9')) {
+                digits++;
+            }
+            if ((digits > pos) && ((digits == lineLength) || isSpace(line[digits]))) {
+                pos = skipSpace(digits);
+            }
+
+            if (indexOfSpace(pos) != lineLength) {
+                return RESPONSE_INVALID;
+            }
+
+            argsStart = pos;
+            argsPos = pos;
+            return RESPONSE_OK;
+        }
+
+        if (startsWith("ERR") && (lineLength > 3) && isSpace(line[3])) {
+            int codeStart = skipSpace(3);
+            int codeEnd = indexOfSpace(codeStart);
+            if (codeEnd == codeStart) {
+                return RESPONSE_INVALID;
+            }
+            int strStart = skipSpace(codeEnd);
+            int strEnd = indexOfSpace(strStart);
+            if (strEnd != lineLength) {
+                return RESPONSE_INVALID;
+            }
+
+            err = new String(line, codeStart, codeEnd - codeStart, UTF_8);
+            errStr = new String(line, strStart, strEnd - strStart, UTF_8);
+            return RESPONSE_ERR;
+        }
+
+        return RESPONSE_INVALID;
+    }
+
+    private boolean startsWith(final String prefix) {
+        if (lineLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipSpace(int pos) {
+        while ((pos < lineLength) && isSpace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int indexOfSpace(int pos) {
+        while ((pos < lineLength) && !isSpace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isSpace(final byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\r') || (b == '\n') || (b == '\f') || (b == 0x0B);
+    }
+
+    private int parseInt(final int start, final int end) {
+        if ((start >= end) || (end - start > 9)) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * url-decode line[start, end) into a String
+     */
+    private String decode(final int start, final int end) {
+        int i = start;
+        while ((i < end) && (line[i] != '%') && (line[i] != '+')) {
+            i++;
+        }
+        if (i == end) {
+            // nothing escaped, which is the common case for paths and keys
+            return new String(line, start, end - start, UTF_8);
+        }
+
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, scratch.length * 2)];
+        }
+        int length = i - start;
+        System.arraycopy(line, start, scratch, 0, length);
+
+        while (i < end) {
+            byte b = line[i++];
+            if (b == '+') {
+                b = ' ';
+            } else if ((b == '%') && (i + 1 < end)) {
+                int high = hexValue(line[i]);
+                int low = hexValue(line[i + 1]);
+                if ((high >= 0) && (low >= 0)) {
+                    b = (byte) ((high << 4) | low);
+                    i += 2;
+                }
+            }
+            scratch[length++] = b;
+        }
+
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    private static int hexValue(final byte b) {
+        if ((b >= '0') && (b <= '9')) {
+            return b - '0';
+        }
+        if ((b >= 'A') && (b <= 'F')) {
+            return b - 'A' + 10;
+        }
+        if ((b >= 'a') && (b <= 'f')) {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private void appendByte(final int b) {
+        if (requestLength == request.length) {
+            request = grow(request, requestLength + 1);
+        }
+        request[requestLength++] = (byte) b;
+    }
+
+    private void appendAscii(final String s) {
+        int length = s.length();
+        if (requestLength + length > request.length) {
+            request = grow(request, requestLength + length);
+        }
+        for (int i = 0; i < length; i++) {
+            request[requestLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Append the value the same way URLEncoder.encode(value, "UTF-8") would.
+     */
+    private void appendEncoded(final String s) {
+        int length = s.length();
+        // worst case is three UTF-8 bytes per char, each escaped as %XX
+        if (requestLength + length * 9 > request.length) {
+            request = grow(request, requestLength + length * 9);
+        }
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                if (SAFE[c]) {
+                    request[requestLength++] = (byte) c;
+                } else if (c == ' ') {
+                    request[requestLength++] = '+';
+                } else {
+                    appendEscaped(c);
+                }
+            } else if (c < 0x800) {
+                appendEscaped(0xC0 | (c >> 6));
+                appendEscaped(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < length)
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                appendEscaped(0xF0 | (cp >> 18));
+                appendEscaped(0x80 | ((cp >> 12) & 0x3F));
+                appendEscaped(0x80 | ((cp >> 6) & 0x3F));
+                appendEscaped(0x80 | (cp & 0x3F));
+            } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+                // unpaired surrogate, which the UTF-8 encoder replaces with '?'
+                appendEscaped('?');
+            } else {
+                appendEscaped(0xE0 | (c >> 12));
+                appendEscaped(0x80 | ((c >> 6) & 0x3F));
+                appendEscaped(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void appendEscaped(final int b) {
+        request[requestLength++] = '%';
+        request[requestLength++] = HEX[(b >> 4) & 0x0F];
+        request[requestLength++] = HEX[b & 0x0F];
+    }
+
+    private static byte[] grow(final byte[] buffer, final int minLength) {
+        byte[] bigger = new byte[Math.max(minLength, buffer.length * 2)];
+        System.arraycopy(buffer, 0, bigger, 0, buffer.length);
+        return bigger;
+    }
+}
@@ -0,0 +1,420 @@
+package com.guba.mogilefs;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how fast and how reliably each tracker has been answering
+ * our requests, and uses that to pick which tracker a Backend should connect
+ * to. Latency and error rate are exponentially weighted moving averages fed
+ * by the timings of real requests. Selection is "power of two choices": two
+ * trackers are picked at random and the one with the better score wins, so a
+ * slow tracker gets less traffic without all connections piling onto the
+ * single fastest one.
+ * <p/>
+ * This is also where trackers we couldn't talk to are marked as dead. One
+ * instance is shared by all Backends of a MogileFS client, so once one
+ * connection finds out a tracker is down, every other connection steers
+ * clear of it too instead of sitting through its own connect timeout.
+ * Everything is kept in primitive arrays indexed by the position of the
+ * tracker in the list, so neither recording a measurement nor checking
+ * for a dead tracker ever takes a lock.
+ * <p/>
+ * When a TrackerProber is watching the trackers, dead trackers are handled
+ * by a circuit breaker per tracker instead of the 5 second retry: a tracker
+ * is OPEN (left alone) once we can't connect to it or it failed
+ * FAILURE_THRESHOLD requests in a row, HALF_OPEN once the prober can talk
+ * to it again after a cool-down, and CLOSED once it passed enough probes.
+ * Any failure while HALF_OPEN opens the breaker again. Request threads
+ * never touch an OPEN tracker and only use a HALF_OPEN one if there is
+ * nothing else, so they don't pay for finding out about failed or
+ * recovering trackers.
+ * <p/>
+ * The score only decides where a new connection goes. So that a tracker
+ * turning slow doesn't keep the pooled connections it already has, a
+ * tracker that is much slower (or more error prone) than the best one we
+ * have timings for is put after the others when connecting, and
+ * PoolableBackendFactory retires pooled connections to it when they are
+ * borrowed.
+ */
+class TrackerHealth {
+
+    /* weight of a new sample in the moving averages */
+    private static final double ALPHA = 0.3;
+
+    /* an error rate of 100% makes a tracker look this many times slower */
+    private static final double ERROR_PENALTY = 10.0;
+
+    /* added to every latency so error rates still count for trackers we have no timings for */
+    private static final double BASE_NANOS = 1000 * 1000;
+
+    /* how quickly an old latency measurement is forgotten if a tracker isn't used */
+    private static final long DECAY_NANOS = 10L * 1000 * 1000 * 1000;
+
+    /* dead trackers are left alone for this long before we try them again */
+    public static final long DEAD_RETRY_MILLIS = 5000;
+
+    public static final int CLOSED = 0;
+
+    public static final int OPEN = 1;
+
+    public static final int HALF_OPEN = 2;
+
+    /* consecutive failed requests that open the circuit breaker */
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /* consecutive good probes that close a half-open circuit breaker */
+    public static final int PROBE_SUCCESS_THRESHOLD = 2;
+
+    /* an open circuit breaker stays open at least this long */
+    public static final long COOL_DOWN_MILLIS = 1000;
+
+    /* a tracker this many times worse than the best one is avoided */
+    public static final double SLOW_FACTOR = 4.0;
+
+    private static final Random RANDOM = new Random();
+
+    private final List<InetSocketAddress> trackers;
+
+    /* latency moving average in nanoseconds, as double bits */
+    private final AtomicLongArray latency;
+
+    /* error rate moving average between 0 and 1, as double bits */
+    private final AtomicLongArray errorRate;
+
+    /* System.nanoTime() of the last measurement */
+    private final AtomicLongArray lastUpdate;
+
+    /* System.currentTimeMillis() of when the tracker was marked dead or its breaker opened, 0 if neither */
+    private final AtomicLongArray deadSince;
+
+    /* open connections per tracker */
+    private final AtomicIntegerArray connections;
+
+    /* System.currentTimeMillis() after which the next connection may be moved */
+    private final AtomicLong nextRebalance = new AtomicLong();
+
+    /* circuit breaker state, only used if the breaker is enabled */
+    private final AtomicIntegerArray breaker;
+
+    /* consecutive failures, or consecutive good probes while half-open */
+    private final AtomicIntegerArray streak;
+
+    private volatile boolean breakerEnabled;
+
+    public TrackerHealth(final List<InetSocketAddress> trackers) {
+        this.trackers = trackers;
+
+        int size = trackers.size();
+        this.latency = new AtomicLongArray(size);
+        this.errorRate = new AtomicLongArray(size);
+        this.lastUpdate = new AtomicLongArray(size);
+        this.deadSince = new AtomicLongArray(size);
+        this.connections = new AtomicIntegerArray(size);
+        this.breaker = new AtomicIntegerArray(size);
+        this.streak = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * Switch from the 5 second retry of dead trackers to the circuit
+     * breaker. Only do this if something is probing the trackers, or OPEN
+     * trackers will never be used again.
+     */
+    public void setCircuitBreakerEnabled(final boolean breakerEnabled) {
+        this.breakerEnabled = breakerEnabled;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return breakerEnabled;
+    }
+
+    /**
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    public int getBreakerState(final int index) {
+        return breaker.get(index);
+    }
+
+    public List<InetSocketAddress> getTrackers() {
+        return trackers;
+    }
+
+    public int size() {
+        return trackers.size();
+    }
+
+    /**
+     * A request to the given tracker was answered after this many
+     * nanoseconds.
+     */
+    public void recordSuccess(final int index, final long nanos) {
+        long now = System.nanoTime();
+        if (latency.get(index) == 0) {
+            // first measurement, don't average it with nothing
+            latency.set(index, Double.doubleToRawLongBits(nanos));
+        } else {
+            update(latency, index, nanos);
+        }
+        update(errorRate, index, 0.0);
+        lastUpdate.set(index, now);
+
+        if (breaker.get(index) == CLOSED) {
+            streak.set(index, 0);
+        }
+    }
+
+    /**
+     * We failed to connect to or talk to the given tracker.
+     */
+    public void recordFailure(final int index) {
+        update(errorRate, index, 1.0);
+        lastUpdate.set(index, System.nanoTime());
+
+        if (!breakerEnabled) {
+            return;
+        }
+
+        if (breaker.get(index) == HALF_OPEN) {
+            // the streak counts good probes here, a failure means start over
+            openBreaker(index, System.currentTimeMillis());
+        } else if (streak.incrementAndGet(index) >= FAILURE_THRESHOLD) {
+            openBreaker(index, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The prober got an answer from the given tracker.
+     */
+    public void recordProbeSuccess(final int index, final long nanos) {
+        recordProbeSuccess(index, nanos, System.currentTimeMillis());
+    }
+
+    void recordProbeSuccess(final int index, final long nanos, final long now) {
+        recordSuccess(index, nanos);
+
+        int state = breaker.get(index);
+        if (state == OPEN) {
+            if ((now - deadSince.get(index) >= COOL_DOWN_MILLIS) && breaker.compareAndSet(index, OPEN, HALF_OPEN)) {
+                streak.set(index, 1);
+            }
+        } else if ((state == HALF_OPEN)
+                && (streak.incrementAndGet(index) >= PROBE_SUCCESS_THRESHOLD)) {
+            breaker.set(index, CLOSED);
+            streak.set(index, 0);
+            deadSince.set(index, 0);
+        }
+    }
+
+    /**
+     * The prober couldn't talk to the given tracker.
+     */
+    public void recordProbeFailure(final int index) {
+        update(errorRate, index, 1.0);
+        lastUpdate.set(index, System.nanoTime());
+        openBreaker(index, System.currentTimeMillis());
+    }
+
+    /**
+     * Open the breaker and (re)start its cool-down.
+     */
+    private void openBreaker(final int index, final long now) {
+        breaker.set(index, OPEN);
+        streak.set(index, 0);
+        deadSince.set(index, now);
+    }
+
+    /**
+     * Remember that we couldn't talk to the given tracker at all.
+     */
+    public void markDead(final int index, final long now) {
+        deadSince.set(index, now);
+
+        if (breakerEnabled) {
+            openBreaker(index, now);
+        }
+    }
+
+    /**
+     * We got through to the given tracker, so it's not dead (any more).
+     */
+    public void markAlive(final int index) {
+        if (deadSince.get(index) != 0) {
+            deadSince.set(index, 0);
+        }
+    }
+
+    /**
+     * Was the given tracker marked dead recently enough that we should
+     * leave it alone for now?
+     */
+    public boolean isDead(final int index, final long now) {
+        if (breakerEnabled) {
+            return breaker.get(index) == OPEN;
+        }
+
+        long since = deadSince.get(index);
+        return (since != 0) && (since > now - DEAD_RETRY_MILLIS);
+    }
+
+    public void connectionOpened(final int index) {
+        connections.incrementAndGet(index);
+    }
+
+    public void connectionClosed(final int index) {
+        connections.decrementAndGet(index);
+    }
+
+    public int getConnectionCount(final int index) {
+        return connections.get(index);
+    }
+
+    /**
+     * Should a connection to the given tracker be closed so it can be
+     * reopened to a tracker with fewer connections? That's the case if the
+     * tracker has more than its fair share of the connections to live
+     * trackers while another live tracker has less. To move connections
+     * over gradually, this says yes at most once per intervalMillis for the
+     * whole client.
+     */
+    public boolean shouldRebalance(final int index, final long now, final long intervalMillis) {
+        if ((index < 0) || (now < nextRebalance.get())) {
+            return false;
+        }
+
+        int total = 0;
+        int live = 0;
+        int least = Integer.MAX_VALUE;
+        for (int i = 0; i < trackers.size(); i++) {
+            if (isDead(i, now)) {
+                continue;
+            }
+            int count = connections.get(i);
+            total += count;
+            live++;
+            least = Math.min(least, count);
+        }
+        if (live < 2) {
+            return false;
+        }
+
+        int fairShare = (total + live - 1) / live;
+        if ((connections.get(index) <= fairShare) || (least >= fairShare)) {
+            return false;
+        }
+
+        long due = nextRebalance.get();
+        return (now >= due) && nextRebalance.compareAndSet(due, now + intervalMillis);
+    }
+
+    /**
+     * Lower is better. What we know about trackers we haven't heard from in
+     * a while fades away, so they get tried again. Trackers that already
+     * have a lot of our connections look worse, so new connections spread
+     * out.
+     */
+    public double score(final int index) {
+        return quality(index) * (1 + connections.get(index));
+    }
+
+    /**
+     * The score without the connection count: how fast and reliable the
+     * tracker has been lately. Lower is better.
+     */
+    double quality(final int index) {
+        double lat = Double.longBitsToDouble(latency.get(index));
+        double err = Double.longBitsToDouble(errorRate.get(index));
+
+        long age = System.nanoTime() - lastUpdate.get(index);
+        double decay = (age > 0) ? Math.exp(-(double) age / DECAY_NANOS) : 1.0;
+
+        return (lat * decay + BASE_NANOS) * (1.0 + err * decay * ERROR_PENALTY);
+    }
+
+    /**
+     * Is the given tracker more than SLOW_FACTOR times worse than the best
+     * live tracker we have timings for? Trackers we haven't talked to yet
+     * don't count as the best, or every tracker would look slow next to
+     * them.
+     */
+    public boolean isMuchWorse(final int index, final long now) {
+        if (index < 0) {
+            return false;
+        }
+
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < trackers.size(); i++) {
+            if ((i == index) || (lastUpdate.get(i) == 0) || isDead(i, now)
+                    || (breakerEnabled && (breaker.get(i) == HALF_OPEN))) {
+                continue;
+            }
+            best = Math.min(best, quality(i));
+        }
+
+        return (best < Double.MAX_VALUE) && (quality(index) > SLOW_FACTOR * best);
+    }
+
+    /**
+     * Return the order in which to try to connect to the trackers: the
+     * better of two randomly picked trackers first, then the rest in a
+     * random rotation. Trackers that are much worse than the best one go
+     * after the others, and with the circuit breaker enabled, HALF_OPEN
+     * trackers go to the very end of the list.
+     */
+    public int[] connectOrder() {
+        return connectOrder(RANDOM);
+    }
+
+    int[] connectOrder(final Random random) {
+        int size = trackers.size();
+        int start = random.nextInt(size);
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (start + i) % size;
+        }
+
+        if (size > 1) {
+            int other = 1 + random.nextInt(size - 1);
+            if (score(order[other]) < score(order[0])) {
+                int tmp = order[0];
+                order[0] = order[other];
+                order[other] = tmp;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        int[] rank = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (breakerEnabled && (breaker.get(order[i]) == HALF_OPEN)) {
+                rank[i] = 2;
+            } else if (isMuchWorse(order[i], now)) {
+                rank[i] = 1;
+            }
+        }
+
+        int[] sorted = new int[size];
+        int next = 0;
+        for (int r = 0; r <= 2; r++) {
+            for (int i = 0; i < size; i++) {
+                if (rank[i] == r) {
+                    sorted[next++] = order[i];
+                }
+            }
+        }
+        return sorted;
+    }
+
+    private static void update(final AtomicLongArray averages, final int index, final double sample) {
+        while (true) {
+            long current = averages.get(index);
+            double updated = (1.0 - ALPHA) * Double.longBitsToDouble(current) + ALPHA * sample;
+            if (averages.compareAndSet(index, current, Double.doubleToRawLongBits(updated))) {
+                return;
+            }
+        }
+    }
+}
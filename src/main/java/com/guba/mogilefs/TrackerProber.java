@@ -0,0 +1,137 @@
+package com.guba.mogilefs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a 'noop' to every tracker every so often from a background thread
+ * and feeds the results into the circuit breakers of a TrackerHealth. This
+ * way the pool finds out about trackers going down or coming back up
+ * without a request thread having to sit through a connect timeout.
+ *
+ * @see TrackerHealth
+ */
+class TrackerProber implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(TrackerProber.class);
+
+    private static final int PROBE_TIMEOUT = 3000;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final TrackerCodec codec = new TrackerCodec();
+
+    private volatile TrackerHealth health;
+
+    public TrackerProber(final TrackerHealth health, final long intervalMillis) {
+        setTrackerHealth(health);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "mogilefs-tracker-prober");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a new set of trackers, like after a reload.
+     */
+    public void setTrackerHealth(final TrackerHealth health) {
+        health.setCircuitBreakerEnabled(true);
+
+        TrackerHealth old = this.health;
+        this.health = health;
+
+        if (old != null) {
+            old.setCircuitBreakerEnabled(false);
+        }
+    }
+
+    /**
+     * Stop probing. The trackers go back to the 5 second retry of dead
+     * trackers.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        health.setCircuitBreakerEnabled(false);
+    }
+
+    public void run() {
+        TrackerHealth current = health;
+
+        for (int i = 0; i < current.size(); i++) {
+            InetSocketAddress host = current.getTrackers().get(i);
+            int before = current.getBreakerState(i);
+
+            long start = System.nanoTime();
+            if (probe(host)) {
+                current.recordProbeSuccess(i, System.nanoTime() - start);
+            } else {
+                current.recordProbeFailure(i);
+            }
+
+            int after = current.getBreakerState(i);
+            if (before != after) {
+                log.warn("tracker " + host + " went from " + stateName(before) + " to " + stateName(after));
+            }
+        }
+    }
+
+    /**
+     * Connect to the tracker and check that it answers a noop.
+     */
+    private boolean probe(final InetSocketAddress host) {
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(PROBE_TIMEOUT);
+            socket.connect(host, PROBE_TIMEOUT);
+
+            codec.clearRequest();
+            codec.encodeRequest("noop", new String[0]);
+            codec.writeRequest(socket.getOutputStream());
+
+            codec.resetInput();
+            return codec.readResponse(socket.getInputStream()) == TrackerCodec.RESPONSE_OK;
+
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("probe of tracker " + host + " failed", e);
+            }
+            return false;
+
+        } catch (RuntimeException e) {
+            // keep the scheduler going no matter what
+            log.warn("probe of tracker " + host + " failed", e);
+            return false;
+
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String stateName(final int state) {
+        switch (state) {
+            case TrackerHealth.OPEN:
+                return "open";
+            case TrackerHealth.HALF_OPEN:
+                return "half-open";
+            default:
+                return "closed";
+        }
+    }
+}
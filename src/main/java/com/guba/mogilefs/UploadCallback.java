@@ -0,0 +1,22 @@
+package com.guba.mogilefs;
+
+/**
+ * Told how an asynchronous upload went. The methods are called on the
+ * upload thread, so they should be quick, and must not wait for other
+ * uploads of the same client.
+ *
+ * @see BaseMogileFSImpl#storeStreamAsync(String, String, java.io.InputStream, long, UploadCallback)
+ * @see BaseMogileFSImpl#storeFileAsync(String, String, java.io.File, UploadCallback)
+ */
+public interface UploadCallback {
+
+    /**
+     * The file was stored.
+     */
+    public void uploaded(String key, MogileResponse response);
+
+    /**
+     * We gave up storing the file.
+     */
+    public void failed(String key, MogileException e);
+}
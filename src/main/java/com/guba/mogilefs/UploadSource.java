@@ -0,0 +1,401 @@
+package com.guba.mogilefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Where the bytes of an upload come from. An upload may need to send the
+ * file more than once, to another storage node or on another attempt, so
+ * this hands out a fresh stream for each try as long as it can: a file can
+ * always be read again, but a stream we were given can only be sent again
+ * if nothing has been read from it yet, unless we keep a copy of what has
+ * been read.
+ */
+abstract class UploadSource {
+
+    /**
+     * Return a stream with the whole content, positioned at the start. The
+     * stream belongs to this source, so don't close it.
+     *
+     * @throws IOException if the content can't be read (again)
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * @return true if open() can give us the whole content again
+     */
+    public abstract boolean canReplay();
+
+    /**
+     * @return the number of bytes in the content, or -1 if we don't know
+     */
+    public abstract long getLength();
+
+    /**
+     * Let go of whatever this source holds on to.
+     */
+    public abstract void close();
+
+    public static UploadSource forStream(final InputStream is, final long length) {
+        return new StreamSource(is, length);
+    }
+
+    /**
+     * Keep a copy of what is read from the stream, the first bufferSize
+     * bytes in memory and the rest in a temp file, so it can always be sent
+     * again.
+     */
+    public static UploadSource forBufferedStream(final InputStream is, final long length, final int bufferSize) {
+        return new BufferedStreamSource(is, length, bufferSize);
+    }
+
+    public static UploadSource forFile(final File file) {
+        return new FileSource(file);
+    }
+
+    /**
+     * Part of a file, whose MD5 we work out as it's sent.
+     */
+    public static FileRangeSource forFileRange(final File file, final long offset, final long length) {
+        return new FileRangeSource(file, offset, length);
+    }
+
+    static void closeQuietly(final InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing we can do
+            }
+        }
+    }
+
+    /**
+     * A stream we were given, which can be handed out again until the first
+     * byte has been read from it.
+     */
+    private static class StreamSource extends UploadSource {
+
+        private final CountingInputStream in;
+
+        private final long length;
+
+        StreamSource(final InputStream is, final long length) {
+            this.in = new CountingInputStream(is);
+            this.length = length;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            if (!canReplay()) {
+                throw new IOException("upload stream has been read already and can't be sent again");
+            }
+            return in;
+        }
+
+        @Override
+        public boolean canReplay() {
+            return in.getCount() == 0;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(in);
+        }
+    }
+
+    private static class FileSource extends UploadSource {
+
+        private final File file;
+
+        private InputStream in;
+
+        FileSource(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            close();
+            in = new FileInputStream(file);
+            return in;
+        }
+
+        @Override
+        public boolean canReplay() {
+            return true;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length();
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(in);
+            in = null;
+        }
+    }
+
+    static class FileRangeSource extends UploadSource {
+
+        private final File file;
+
+        private final long offset;
+
+        private final long length;
+
+        private FileInputStream in;
+
+        private DigestInputStream digestStream;
+
+        FileRangeSource(final File file, final long offset, final long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            close();
+            in = new FileInputStream(file);
+            in.getChannel().position(offset);
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            // the upload reads exactly length bytes, so this sees just our part
+            digestStream = new DigestInputStream(in, digest);
+            return digestStream;
+        }
+
+        @Override
+        public boolean canReplay() {
+            return true;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the hex MD5 of what the last stream handed out read
+         */
+        public String getMd5() {
+            return BigFileInfo.toHex(digestStream.getMessageDigest().digest());
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(in);
+            in = null;
+        }
+    }
+
+    /**
+     * A stream we were given, a copy of which is kept as it's read. Each
+     * stream handed out replays the copy, then goes on reading from the
+     * original where the last one left off, so the first try streams the
+     * content as it comes in and nothing is read twice.
+     */
+    private static class BufferedStreamSource extends UploadSource {
+
+        private final InputStream source;
+
+        private final long length;
+
+        private final int bufferSize;
+
+        private byte[] memory = new byte[1024];
+
+        private int memoryCount;
+
+        /* whatever doesn't fit in memory, created when first needed */
+        private File spillFile;
+
+        private RandomAccessFile spill;
+
+        /* bytes read from the source so far */
+        private long copied;
+
+        private boolean sourceDone;
+
+        private ReplayInputStream current;
+
+        BufferedStreamSource(final InputStream source, final long length, final int bufferSize) {
+            this.source = source;
+            this.length = length;
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            current = new ReplayInputStream();
+            return current;
+        }
+
+        @Override
+        public boolean canReplay() {
+            return true;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(source);
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    // nothing we can do
+                }
+                spill = null;
+            }
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+            memory = null;
+        }
+
+        /**
+         * Read more from the source and keep a copy of it.
+         *
+         * @return the number of bytes read, or -1 at the end of the source
+         */
+        private int readSource(final byte[] b, final int off, final int len) throws IOException {
+            if (sourceDone) {
+                return -1;
+            }
+
+            int count = source.read(b, off, len);
+            if (count < 0) {
+                sourceDone = true;
+                return -1;
+            }
+
+            int inMemory = (int) Math.min(count, Math.max(0, bufferSize - copied));
+            if (inMemory > 0) {
+                if (memoryCount + inMemory > memory.length) {
+                    byte[] bigger = new byte[Math.min(bufferSize, Math.max(memory.length * 2, memoryCount + inMemory))];
+                    System.arraycopy(memory, 0, bigger, 0, memoryCount);
+                    memory = bigger;
+                }
+                System.arraycopy(b, off, memory, memoryCount, inMemory);
+                memoryCount += inMemory;
+            }
+            if (count > inMemory) {
+                if (spill == null) {
+                    spillFile = File.createTempFile("mogilefs-upload", ".tmp");
+                    spill = new RandomAccessFile(spillFile, "rw");
+                }
+                spill.seek(copied + inMemory - memoryCount);
+                spill.write(b, off + inMemory, count - inMemory);
+            }
+
+            copied += count;
+            return count;
+        }
+
+        /**
+         * Read part of the copy, starting at the given position.
+         */
+        private int readCopy(final long position, final byte[] b, final int off, final int len) throws IOException {
+            if (position < memoryCount) {
+                int count = (int) Math.min(len, memoryCount - position);
+                System.arraycopy(memory, (int) position, b, off, count);
+                return count;
+            }
+
+            spill.seek(position - memoryCount);
+            return spill.read(b, off, (int) Math.min(len, copied - position));
+        }
+
+        private class ReplayInputStream extends InputStream {
+
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int count = read(b, 0, 1);
+                return (count < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (current != this) {
+                    throw new IOException("upload stream has been replaced by a newer one");
+                }
+                if (len == 0) {
+                    return 0;
+                }
+
+                int count = (position < copied) ? readCopy(position, b, off, len) : readSource(b, off, len);
+                if (count > 0) {
+                    position += count;
+                }
+                return count;
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
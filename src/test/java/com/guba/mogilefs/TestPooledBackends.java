@@ -0,0 +1,137 @@
+package com.guba.mogilefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.test.FakeTracker;
+
+/**
+ * How pooled Backends are retired and destroyed. This lives in the package
+ * of BackendPool since that class isn't public.
+ */
+public class TestPooledBackends {
+
+	private static final long MILLIS = 1000 * 1000;
+
+	private FakeTracker tracker;
+
+	@Before
+	public void setUp() throws Exception {
+		tracker = new FakeTracker();
+	}
+
+	@After
+	public void tearDown() {
+		tracker.close();
+	}
+
+	@Test
+	public void testForeignObjectDestroyed() throws Exception {
+		PoolableBackendFactory factory = new PoolableBackendFactory(addresses(tracker));
+		BackendPool oldPool = new BackendPool(factory, 4, 4, 5000, 30000, false);
+		BackendPool newPool = new BackendPool(factory, 4, 4, 5000, 30000, false);
+
+		// like backends borrowed before a reload swapped the pool
+		Object returned = oldPool.borrowObject();
+		Object invalidated = oldPool.borrowObject();
+		assertEquals(2, tracker.awaitOpenConnections(2, 5000));
+
+		newPool.returnObject(returned);
+		newPool.invalidateObject(invalidated);
+
+		assertEquals(0, tracker.awaitOpenConnections(0, 5000));
+		assertEquals(0, newPool.getNumIdle());
+		assertEquals(0, newPool.getNumActive());
+	}
+
+	@Test
+	public void testMaxConnectionAge() throws Exception {
+		PoolableBackendFactory factory = new PoolableBackendFactory(addresses(tracker));
+		factory.setMaxConnectionAge(200);
+
+		Object backend = factory.makeObject();
+		try {
+			assertTrue(factory.validateObject(backend));
+
+			// the age is jittered down by up to a fifth, never up
+			Thread.sleep(250);
+			assertFalse(factory.validateObject(backend));
+		} finally {
+			factory.destroyObject(backend);
+		}
+	}
+
+	@Test
+	public void testRetireFromSlowTracker() throws Exception {
+		FakeTracker other = new FakeTracker();
+		try {
+			TrackerHealth health = new TrackerHealth(addresses(tracker, other));
+			PoolableBackendFactory factory = new PoolableBackendFactory(health);
+
+			Backend backend = (Backend) factory.makeObject();
+			try {
+				int index = backend.getTrackerIndex();
+				health.recordSuccess(index, 2 * MILLIS);
+				health.recordSuccess(1 - index, 2 * MILLIS);
+				assertTrue(factory.validateObject(backend));
+
+				// its tracker turns slow
+				for (int i = 0; i < 10; i++) {
+					health.recordSuccess(index, 50 * MILLIS);
+				}
+				assertFalse(factory.validateObject(backend));
+			} finally {
+				factory.destroyObject(backend);
+			}
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testRebalance() throws Exception {
+		FakeTracker other = new FakeTracker();
+		try {
+			TrackerHealth health = new TrackerHealth(addresses(tracker, other));
+			PoolableBackendFactory factory = new PoolableBackendFactory(health);
+			factory.setRebalanceInterval(60000);
+
+			Backend backend = (Backend) factory.makeObject();
+			try {
+				assertTrue(factory.validateObject(backend));
+
+				// pretend we have a pile of other connections to the same tracker
+				int index = backend.getTrackerIndex();
+				for (int i = 0; i < 3; i++) {
+					health.connectionOpened(index);
+				}
+				assertFalse(factory.validateObject(backend));
+
+				// only one connection is moved per interval
+				assertTrue(factory.validateObject(backend));
+			} finally {
+				factory.destroyObject(backend);
+			}
+		} finally {
+			other.close();
+		}
+	}
+
+	static List<InetSocketAddress> addresses(final FakeTracker... trackers) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (FakeTracker tracker : trackers) {
+			String[] host = tracker.getHostString().split(":");
+			addresses.add(new InetSocketAddress(host[0], Integer.parseInt(host[1])));
+		}
+		return addresses;
+	}
+}
@@ -0,0 +1,64 @@
+package com.guba.mogilefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.junit.Test;
+
+/**
+ * The storage node options end up in the HttpClient parameters and on the
+ * sockets HttpClient opens.
+ */
+public class TestSocketConfig {
+
+	@Test
+	public void testStorageParams() {
+		SocketConfig config = new SocketConfig();
+		config.setStorageConnectTimeout(1234);
+		config.setStorageSoTimeout(5678);
+		config.setTcpNoDelay(false);
+
+		HttpParams params = new BasicHttpParams();
+		config.applyToStorageParams(params);
+
+		assertEquals(1234, HttpConnectionParams.getConnectionTimeout(params));
+		assertEquals(5678, HttpConnectionParams.getSoTimeout(params));
+		assertFalse(HttpConnectionParams.getTcpNoDelay(params));
+		assertEquals(-1, HttpConnectionParams.getSocketBufferSize(params));
+
+		config.setSendBufferSize(64 * 1024);
+		config.setReceiveBufferSize(256 * 1024);
+		config.applyToStorageParams(params);
+
+		assertEquals(256 * 1024, HttpConnectionParams.getSocketBufferSize(params));
+	}
+
+	@Test
+	public void testStorageSockets() throws Exception {
+		SocketConfig config = new SocketConfig();
+		config.setKeepAlive(true);
+		config.setStorageSoTimeout(5678);
+		config.setSendBufferSize(64 * 1024);
+		config.setReceiveBufferSize(128 * 1024);
+
+		SchemeSocketFactory factory = config.createStorageSchemeRegistry().getScheme("http").getSchemeSocketFactory();
+		Socket socket = factory.createSocket(new BasicHttpParams());
+		try {
+			assertTrue(socket.getKeepAlive());
+			assertTrue(socket.getTcpNoDelay());
+			assertEquals(5678, socket.getSoTimeout());
+			// the OS may round these up
+			assertTrue(socket.getSendBufferSize() >= 64 * 1024);
+			assertTrue(socket.getReceiveBufferSize() >= 128 * 1024);
+		} finally {
+			socket.close();
+		}
+	}
+}
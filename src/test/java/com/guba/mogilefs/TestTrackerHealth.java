@@ -0,0 +1,212 @@
+package com.guba.mogilefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.test.FakeTracker;
+
+/**
+ * Tracker scoring and selection, fed with fixed latencies, and dead
+ * trackers shared between Backends. This lives in the package of
+ * TrackerHealth since that class isn't public.
+ */
+public class TestTrackerHealth {
+
+	private static final long MILLIS = 1000 * 1000;
+
+	private TrackerHealth health;
+
+	@Before
+	public void setUp() {
+		List<InetSocketAddress> trackers = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < 3; i++) {
+			trackers.add(InetSocketAddress.createUnresolved("tracker" + i, 7001));
+		}
+		health = new TrackerHealth(trackers);
+	}
+
+	@Test
+	public void testScore() {
+		health.recordSuccess(0, 2 * MILLIS);
+		health.recordSuccess(1, 20 * MILLIS);
+
+		assertTrue(health.score(0) < health.score(1));
+
+		// errors make a tracker look worse
+		health.recordSuccess(2, 2 * MILLIS);
+		health.recordFailure(2);
+		assertTrue(health.score(0) < health.score(2));
+
+		// and so do the connections we already have to it
+		double before = health.score(0);
+		health.connectionOpened(0);
+		assertEquals(2 * before, health.score(0), before / 100);
+	}
+
+	@Test
+	public void testMuchWorse() {
+		long now = System.currentTimeMillis();
+
+		// nothing to compare with yet
+		health.recordSuccess(1, 20 * MILLIS);
+		assertFalse(health.isMuchWorse(1, now));
+
+		health.recordSuccess(0, 2 * MILLIS);
+		assertTrue(health.isMuchWorse(1, now));
+		assertFalse(health.isMuchWorse(0, now));
+		assertFalse(health.isMuchWorse(-1, now));
+
+		// connections don't make a tracker slow
+		for (int i = 0; i < 10; i++) {
+			health.connectionOpened(0);
+		}
+		assertFalse(health.isMuchWorse(0, now));
+	}
+
+	@Test
+	public void testConnectOrder() {
+		health.recordSuccess(0, 2 * MILLIS);
+		health.recordSuccess(1, 20 * MILLIS);
+		health.recordSuccess(2, 2 * MILLIS);
+
+		for (int seed = 0; seed < 100; seed++) {
+			int[] order = health.connectOrder(new Random(seed));
+			assertEquals(3, order.length);
+			assertEquals(1, order[2]);
+		}
+	}
+
+	@Test
+	public void testConnectOrderSpreadsConnections() {
+		health.recordSuccess(0, 2 * MILLIS);
+		health.recordSuccess(1, 2 * MILLIS);
+		health.recordSuccess(2, 2 * MILLIS);
+		health.connectionOpened(0);
+		health.connectionOpened(0);
+
+		int[] first = new int[3];
+		for (int seed = 0; seed < 300; seed++) {
+			first[health.connectOrder(new Random(seed))[0]]++;
+		}
+
+		// the better of two random picks never lands on the busy tracker
+		assertEquals(0, first[0]);
+		assertTrue(first[1] > 0);
+		assertTrue(first[2] > 0);
+	}
+
+	@Test
+	public void testBreakerRecovers() {
+		health.setCircuitBreakerEnabled(true);
+		long now = System.currentTimeMillis();
+
+		health.markDead(0, now);
+		assertEquals(TrackerHealth.OPEN, health.getBreakerState(0));
+		assertTrue(health.isDead(0, now));
+
+		// still cooling down
+		health.recordProbeSuccess(0, MILLIS, now + TrackerHealth.COOL_DOWN_MILLIS - 1);
+		assertEquals(TrackerHealth.OPEN, health.getBreakerState(0));
+
+		health.recordProbeSuccess(0, MILLIS, now + TrackerHealth.COOL_DOWN_MILLIS);
+		assertEquals(TrackerHealth.HALF_OPEN, health.getBreakerState(0));
+		assertFalse(health.isDead(0, now));
+
+		health.recordProbeSuccess(0, MILLIS, now + TrackerHealth.COOL_DOWN_MILLIS);
+		assertEquals(TrackerHealth.CLOSED, health.getBreakerState(0));
+	}
+
+	@Test
+	public void testBreakerFailureWhileHalfOpen() {
+		health.setCircuitBreakerEnabled(true);
+		long now = System.currentTimeMillis();
+
+		health.markDead(0, now);
+		health.recordProbeSuccess(0, MILLIS, now + TrackerHealth.COOL_DOWN_MILLIS);
+		assertEquals(TrackerHealth.HALF_OPEN, health.getBreakerState(0));
+
+		// one failure is enough to open it again
+		health.recordFailure(0);
+		assertEquals(TrackerHealth.OPEN, health.getBreakerState(0));
+
+		// and the cool-down starts over
+		long failedAt = System.currentTimeMillis();
+		health.recordProbeSuccess(0, MILLIS, failedAt);
+		assertEquals(TrackerHealth.OPEN, health.getBreakerState(0));
+
+		// a full set of good probes is needed to close it
+		health.recordProbeSuccess(0, MILLIS, failedAt + TrackerHealth.COOL_DOWN_MILLIS);
+		assertEquals(TrackerHealth.HALF_OPEN, health.getBreakerState(0));
+		health.recordProbeSuccess(0, MILLIS, failedAt + TrackerHealth.COOL_DOWN_MILLIS);
+		assertEquals(TrackerHealth.CLOSED, health.getBreakerState(0));
+	}
+
+	@Test
+	public void testBreakerOpensAfterFailures() {
+		health.setCircuitBreakerEnabled(true);
+
+		for (int i = 1; i < TrackerHealth.FAILURE_THRESHOLD; i++) {
+			health.recordFailure(1);
+			assertEquals(TrackerHealth.CLOSED, health.getBreakerState(1));
+		}
+		health.recordFailure(1);
+		assertEquals(TrackerHealth.OPEN, health.getBreakerState(1));
+	}
+
+	@Test
+	public void testDeadTrackerSharedByBackends() throws Exception {
+		// nothing listens here any more, so connecting is refused
+		ServerSocket gone = new ServerSocket(0);
+		InetSocketAddress dead = new InetSocketAddress("127.0.0.1", gone.getLocalPort());
+		gone.close();
+
+		FakeTracker live = new FakeTracker();
+		try {
+			List<InetSocketAddress> trackers = new ArrayList<InetSocketAddress>();
+			trackers.add(dead);
+			trackers.addAll(TestPooledBackends.addresses(live));
+			TrackerHealth shared = new TrackerHealth(trackers);
+
+			// make the dead tracker look like the one to connect to
+			shared.recordSuccess(0, MILLIS);
+			shared.recordSuccess(1, 50 * MILLIS);
+
+			final AtomicInteger attempts = new AtomicInteger();
+			SocketConfig config = new SocketConfig() {
+				@Override
+				void applyToTrackerSocket(final Socket socket) throws SocketException {
+					attempts.incrementAndGet();
+					super.applyToTrackerSocket(socket);
+				}
+			};
+
+			Backend first = new Backend(shared, config, true);
+			assertEquals(2, attempts.get());
+			assertEquals(1, first.getTrackerIndex());
+			assertTrue(shared.isDead(0, System.currentTimeMillis()));
+
+			// the second Backend knows better than to try the dead tracker
+			Backend second = new Backend(shared, config, true);
+			assertEquals(3, attempts.get());
+			assertEquals(1, second.getTrackerIndex());
+
+			first.destroy();
+			second.destroy();
+		} finally {
+			live.close();
+		}
+	}
+}
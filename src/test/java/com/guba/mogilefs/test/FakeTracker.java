@@ -0,0 +1,186 @@
+package com.guba.mogilefs.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for a tracker that answers every command with a canned
+ * response line and remembers the requests it saw.
+ */
+public class FakeTracker implements Runnable {
+
+	/**
+	 * Works out the response line to a request.
+	 */
+	public interface Responder {
+		String respond(Map<String, String> args);
+	}
+
+	private final ServerSocket server;
+
+	private final Map<String, String> responses = Collections.synchronizedMap(new HashMap<String, String>());
+
+	private final Map<String, Responder> responders = Collections.synchronizedMap(new HashMap<String, Responder>());
+
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	private volatile long delayMillis;
+
+	public FakeTracker() throws IOException {
+		server = new ServerSocket(0);
+		Thread thread = new Thread(this, "fake-tracker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getHostString() {
+		return "127.0.0.1:" + server.getLocalPort();
+	}
+
+	/**
+	 * Answer every request for the given command with this line (without
+	 * the trailing "\r\n").
+	 */
+	public void respond(final String command, final String response) {
+		responses.put(command, response);
+	}
+
+	/**
+	 * Answer requests for the given command with whatever the responder
+	 * comes up with.
+	 */
+	public void respond(final String command, final Responder responder) {
+		responders.put(command, responder);
+	}
+
+	/**
+	 * Wait this long before answering each request.
+	 */
+	public void setDelay(final long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public List<String> getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return how many connections were accepted so far
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * @return how many connections are open right now
+	 */
+	public int getOpenConnectionCount() {
+		return openConnections.get();
+	}
+
+	/**
+	 * Wait up to timeoutMillis for the number of open connections to get
+	 * to the given count.
+	 *
+	 * @return the number of open connections
+	 */
+	public int awaitOpenConnections(final int count, final long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while ((openConnections.get() != count) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		return openConnections.get();
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	public void run() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				connections.incrementAndGet();
+				openConnections.incrementAndGet();
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				}, "fake-tracker-connection");
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private static Map<String, String> parseArgs(final String encoded) throws UnsupportedEncodingException {
+		Map<String, String> args = new HashMap<String, String>();
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				args.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return args;
+	}
+
+	private void handle(final Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			OutputStream out = socket.getOutputStream();
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				requests.add(line);
+
+				String[] parts = line.split(" ", 2);
+				String command = parts[0];
+				Responder responder = responders.get(command);
+				String response = (responder != null) ? responder.respond(parseArgs((parts.length > 1) ? parts[1] : ""))
+						: responses.get(command);
+				if (response == null) {
+					response = "ERR unknown_command Unknown+server+command";
+				}
+				if (delayMillis > 0) {
+					Thread.sleep(delayMillis);
+				}
+				out.write((response + "\r\n").getBytes("UTF-8"));
+				out.flush();
+			}
+		} catch (IOException e) {
+			// connection went away
+		} catch (InterruptedException e) {
+			// shutting down
+		} finally {
+			openConnections.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.PooledMogileFSImpl;
+
+/**
+ * Hammer the tracker connection pool from a bunch of threads.
+ */
+public class TestBackendPool {
+
+	private FakeTracker tracker;
+
+	@Before
+	public void setUp() throws Exception {
+		tracker = new FakeTracker();
+		tracker.respond("get_paths", "OK paths=1&path1=http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid");
+	}
+
+	@After
+	public void tearDown() {
+		tracker.close();
+	}
+
+	@Test
+	public void testConcurrentBorrow() throws Exception {
+		final PooledMogileFSImpl mfs = new PooledMogileFSImpl("testdomain",
+				new String[] { tracker.getHostString() }, 4, 4, 30000);
+
+		final AtomicInteger lookups = new AtomicInteger();
+		Thread[] threads = new Thread[16];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 50; j++) {
+						try {
+							if (mfs.getPaths("key", false).length == 1) {
+								lookups.incrementAndGet();
+							}
+						} catch (Exception e) {
+							// counted as missing below
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(16 * 50, lookups.get());
+		assertTrue("opened " + tracker.getConnectionCount() + " connections", tracker.getConnectionCount() <= 4);
+	}
+
+	@Test
+	public void testWarmUp() throws Exception {
+		PooledMogileFSImpl mfs = new PooledMogileFSImpl("testdomain",
+				new String[] { tracker.getHostString() }, 8, 3, 30000);
+
+		assertEquals(3, mfs.warmUp(5, 5000));
+
+		// all requests are served by the warmed up connections
+		for (int i = 0; i < 10; i++) {
+			mfs.getPaths("key", false);
+		}
+		Thread.sleep(100);
+		assertEquals(3, tracker.getConnectionCount());
+	}
+}
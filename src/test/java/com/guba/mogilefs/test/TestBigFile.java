@@ -0,0 +1,169 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.PooledMogileFSImpl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stores a big file in chunks and reads it back, against a fake tracker
+ * and storage node that keep what they're given.
+ */
+public class TestBigFile {
+
+	private final Map<String, String> keyPaths = new ConcurrentHashMap<String, String>();
+
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+
+	private final AtomicInteger fids = new AtomicInteger();
+
+	private FakeTracker tracker;
+
+	private HttpServer storage;
+
+	private PooledMogileFSImpl mfs;
+
+	@Before
+	public void setUp() throws Exception {
+		storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				if ("PUT".equals(exchange.getRequestMethod())) {
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					InputStream in = exchange.getRequestBody();
+					byte[] buffer = new byte[4096];
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						body.write(buffer, 0, count);
+					}
+					files.put(path, body.toByteArray());
+					exchange.sendResponseHeaders(201, -1);
+				} else {
+					byte[] content = files.get(path);
+					if (content == null) {
+						exchange.sendResponseHeaders(404, -1);
+					} else {
+						exchange.sendResponseHeaders(200, content.length);
+						OutputStream out = exchange.getResponseBody();
+						out.write(content);
+						out.close();
+					}
+				}
+				exchange.close();
+			}
+		});
+		storage.setExecutor(Executors.newCachedThreadPool());
+		storage.start();
+
+		final String base = "http://127.0.0.1:" + storage.getAddress().getPort() + "/dev1/";
+
+		tracker = new FakeTracker();
+		tracker.respond("create_open", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				int fid = fids.incrementAndGet();
+				return "OK fid=" + fid + "&dev_count=1&devid_1=1&path_1=" + encode(base + fid + ".fid");
+			}
+		});
+		tracker.respond("create_close", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				keyPaths.put(args.get("key"), args.get("path"));
+				return "OK ";
+			}
+		});
+		tracker.respond("get_paths", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				String path = keyPaths.get(args.get("key"));
+				return (path == null) ? "ERR unknown_key unknown_key" : "OK paths=1&path1=" + encode(path);
+			}
+		});
+		tracker.respond("delete", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				keyPaths.remove(args.get("key"));
+				return "OK ";
+			}
+		});
+
+		mfs = new PooledMogileFSImpl("testdomain", new String[] { tracker.getHostString() }, 4, 4, 5000);
+	}
+
+	@After
+	public void tearDown() {
+		mfs.close();
+		tracker.close();
+		storage.stop(0);
+	}
+
+	@Test
+	public void testBigFile() throws Exception {
+		byte[] content = new byte[100 * 1024];
+		new Random(42).nextBytes(content);
+
+		File file = File.createTempFile("mogilefs", ".big");
+		try {
+			OutputStream out = new FileOutputStream(file);
+			out.write(content);
+			out.close();
+
+			mfs.setBigFileChunkSize(16 * 1024);
+			mfs.setBigFileParallelism(3);
+			mfs.storeBigFile("big", "class", file);
+		} finally {
+			file.delete();
+		}
+
+		for (int chunk = 1; chunk <= 7; chunk++) {
+			assertTrue(keyPaths.containsKey("big," + chunk));
+		}
+		assertFalse(keyPaths.containsKey("_big_pre:big"));
+
+		String manifest = new String(mfs.getFileBytes("_big_info:big"), "UTF-8");
+		assertTrue(manifest.startsWith("des "));
+		assertTrue(manifest.contains("\nchunks 7\nsize " + content.length + "\n\n"));
+		assertTrue(manifest.contains("\npart 7 bytes=" + (content.length - 6 * 16 * 1024) + " md5="));
+
+		InputStream in = mfs.getBigFileStream("big");
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		byte[] buffer = new byte[10000];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			read.write(buffer, 0, count);
+		}
+		in.close();
+		assertArrayEquals(content, read.toByteArray());
+
+		assertNull(mfs.getBigFileStream("nothere"));
+	}
+
+	private static String encode(final String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.PooledMogileFSImpl;
+import com.guba.mogilefs.SimpleMogileFSImpl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Reads through the path cache, against a fake tracker and a fake storage
+ * node.
+ */
+public class TestPathCache {
+
+	private static final byte[] CONTENT = "hello mogile".getBytes();
+
+	private FakeTracker tracker;
+
+	private HttpServer storage;
+
+	private SimpleMogileFSImpl mfs;
+
+	@Before
+	public void setUp() throws Exception {
+		storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, CONTENT.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(CONTENT);
+				out.close();
+			}
+		});
+		storage.start();
+
+		tracker = new FakeTracker();
+		tracker.respond("get_paths", "OK paths=1&path1=http://127.0.0.1:" + storage.getAddress().getPort()
+				+ "/dev1/0/000/000/0000000001.fid");
+		tracker.respond("delete", "OK ");
+
+		mfs = new SimpleMogileFSImpl("testdomain", new String[] { tracker.getHostString() });
+		mfs.setPathCache(100, 60000);
+	}
+
+	@After
+	public void tearDown() {
+		mfs.close();
+		tracker.close();
+		storage.stop(0);
+	}
+
+	@Test
+	public void testCachedPaths() throws Exception {
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+
+		assertEquals(1, countRequests("get_paths"));
+		assertEquals(1, mfs.getPathCacheHits());
+		assertEquals(1, mfs.getPathCacheMisses());
+	}
+
+	@Test
+	public void testUnverifiedPathsNotCached() throws Exception {
+		mfs.getPaths("key", true);
+		mfs.getPaths(Collections.singletonList("key"), true);
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+
+		assertEquals(3, countRequests("get_paths"));
+		assertEquals(0, mfs.getPathCacheHits());
+	}
+
+	@Test
+	public void testDeleteInvalidates() throws Exception {
+		mfs.getFileBytes("key");
+		mfs.delete("key");
+		mfs.getFileBytes("key");
+
+		assertEquals(2, countRequests("get_paths"));
+	}
+
+	@Test
+	public void testMissingKey() throws Exception {
+		tracker.respond("get_paths", "ERR unknown_key unknown_key");
+		mfs.setMissingKeyCache(100, 60000);
+
+		assertNull(mfs.getFileBytes("missing"));
+		assertNull(mfs.getFileStream("missing"));
+
+		assertEquals(1, countRequests("get_paths"));
+		assertEquals(1, mfs.getMissingKeyCacheHits());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final PooledMogileFSImpl pooled = new PooledMogileFSImpl("testdomain",
+				new String[] { tracker.getHostString() }, 8, 8, 5000);
+		pooled.setRequestCoalescing(true);
+		tracker.setDelay(300);
+
+		final AtomicInteger found = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						if (pooled.getPaths("key", false).length == 1) {
+							found.incrementAndGet();
+						}
+					} catch (Exception e) {
+						// counted as not found
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(threads.length, found.get());
+		assertEquals(1, countRequests("get_paths"));
+	}
+
+	private int countRequests(final String command) {
+		int count = 0;
+		for (String request : tracker.getRequests()) {
+			if (request.startsWith(command + " ")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testStoreInvalidatesMissingKey() throws Exception {
+		final PooledMogileFSImpl pooled = storingClient();
+
+		try {
+			pooled.storeStream("key", "class", new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+			assertArrayEquals(CONTENT, pooled.getFileBytes("key"));
+		} finally {
+			pooled.close();
+		}
+	}
+
+	@Test
+	public void testNewFileInvalidatesMissingKey() throws Exception {
+		final PooledMogileFSImpl pooled = storingClient();
+
+		try {
+			OutputStream out = pooled.newFile("key", "class", CONTENT.length);
+			out.write(CONTENT);
+			out.close();
+
+			assertArrayEquals(CONTENT, pooled.getFileBytes("key"));
+		} finally {
+			pooled.close();
+		}
+	}
+
+	/**
+	 * A client whose tracker only knows the key once create_close is done,
+	 * and which looks the key up (and caches that it's missing) while the
+	 * upload is being closed.
+	 */
+	private PooledMogileFSImpl storingClient() throws Exception {
+		final PooledMogileFSImpl pooled = new PooledMogileFSImpl("testdomain",
+				new String[] { tracker.getHostString() }, 4, 4, 5000);
+		pooled.setMissingKeyCache(100, 60000);
+
+		final String path = "http://127.0.0.1:" + storage.getAddress().getPort() + "/dev1/0/000/000/0000000001.fid";
+		final AtomicBoolean stored = new AtomicBoolean();
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + path);
+		tracker.respond("create_close", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				try {
+					// somebody reads the key before the tracker has it
+					assertNull(pooled.getFileBytes("key"));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				stored.set(true);
+				return "OK ";
+			}
+		});
+		tracker.respond("get_paths", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				return stored.get() ? "OK paths=1&path1=" + path : "ERR unknown_key unknown_key";
+			}
+		});
+
+		return pooled;
+	}
+}
@@ -0,0 +1,46 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.guba.mogilefs.ExponentialBackoffRetryPolicy;
+
+public class TestRetryPolicy {
+
+	@Test
+	public void testBackoff() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(100, 1000, 0);
+
+		for (int i = 0; i < 100; i++) {
+			long first = policy.getRetryDelay(1, 0);
+			assertTrue(first >= 0 && first <= 100);
+
+			long third = policy.getRetryDelay(3, 0);
+			assertTrue(third >= 0 && third <= 400);
+
+			long late = policy.getRetryDelay(40, 0);
+			assertTrue(late >= 0 && late <= 1000);
+		}
+	}
+
+	@Test
+	public void testDeadline() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(0, 0, 5000);
+
+		assertEquals(0, policy.getRetryDelay(1, 4999));
+		assertEquals(-1, policy.getRetryDelay(2, 5000));
+	}
+
+	@Test
+	public void testBudget() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(0, 0, 0);
+		policy.setRetryBudget(0.001, 3);
+
+		assertEquals(0, policy.getRetryDelay(1, 0));
+		assertEquals(0, policy.getRetryDelay(1, 0));
+		assertEquals(0, policy.getRetryDelay(1, 0));
+		assertEquals(-1, policy.getRetryDelay(1, 0));
+	}
+}
@@ -0,0 +1,476 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.MogileException;
+import com.guba.mogilefs.MogileResponse;
+import com.guba.mogilefs.PooledMogileFSImpl;
+import com.guba.mogilefs.StorageCommunicationException;
+import com.guba.mogilefs.UploadCallback;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Reads from fake storage nodes, one of which is slow and doesn't do
+ * range requests.
+ */
+public class TestStorageReads {
+
+	private static final byte[] CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+	private static final AtomicInteger partialResponses = new AtomicInteger();
+
+	private static final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+
+	private static final AtomicInteger failingPuts = new AtomicInteger();
+
+	private static final Set<InetSocketAddress> readers = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+
+	private FakeTracker tracker;
+
+	private HttpServer slowStorage;
+
+	private HttpServer fastStorage;
+
+	private PooledMogileFSImpl mfs;
+
+	@Before
+	public void setUp() throws Exception {
+		slowStorage = startStorage(2000, false);
+		fastStorage = startStorage(0, true);
+
+		tracker = new FakeTracker();
+		tracker.respond("get_paths", "OK paths=2&path1=" + pathOn(slowStorage) + "&path2=" + pathOn(fastStorage));
+
+		// keep the path order, so the slow storage node is always asked first
+		mfs = new PooledMogileFSImpl("testdomain", new String[] { tracker.getHostString() }, 4, 4, 5000, 2, true);
+	}
+
+	@After
+	public void tearDown() {
+		mfs.close();
+		tracker.close();
+		slowStorage.stop(0);
+		fastStorage.stop(0);
+	}
+
+	@Test
+	public void testHedgedRead() throws Exception {
+		mfs.setHedgeDelay(100);
+
+		long start = System.currentTimeMillis();
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+		assertTrue(System.currentTimeMillis() - start < 1500);
+	}
+
+	@Test
+	public void testRangeRead() throws Exception {
+		assertArrayEquals("abcd".getBytes(), mfs.getFileBytes("key", 10, 4));
+		assertArrayEquals("xyz".getBytes(), mfs.getFileBytes("key", 33, -1));
+
+		InputStream in = mfs.getFileStream("key", 35, 1);
+		assertEquals('z', in.read());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	@Test
+	public void testSegmentedDownload() throws Exception {
+		tracker.respond("get_paths", "OK paths=2&path1=" + pathOn(fastStorage) + "&path2=" + pathOn(fastStorage));
+		mfs.setDownloadSegmentSize(5);
+		mfs.setDownloadParallelism(3);
+		partialResponses.set(0);
+
+		File destination = File.createTempFile("mogilefs", ".fid");
+		try {
+			mfs.getFile("key", destination);
+
+			byte[] bytes = new byte[(int) destination.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(destination));
+			in.readFully(bytes);
+			in.close();
+			assertArrayEquals(CONTENT, bytes);
+			assertEquals(8, partialResponses.get());
+		} finally {
+			destination.delete();
+		}
+	}
+
+	@Test
+	public void testChannelDownload() throws Exception {
+		tracker.respond("get_paths", "OK paths=2&path1=http://127.0.0.1:1/dev1/0/000/000/0000000001.fid&path2="
+				+ pathOn(fastStorage));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(CONTENT.length, mfs.getFile("key", Channels.newChannel(out)));
+		assertArrayEquals(CONTENT, out.toByteArray());
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		tracker.respond("get_paths", "OK paths=1&path1=" + pathOn(fastStorage));
+		readers.clear();
+
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+		assertEquals(1, readers.size());
+	}
+
+	@Test
+	public void testStorageConnectionsPerHost() throws Exception {
+		tracker.respond("get_paths", "OK paths=1&path1=" + pathOn(fastStorage));
+		assertArrayEquals(CONTENT, mfs.getFileBytes("key"));
+
+		// the pool exists by now, so this has to change it in place
+		mfs.setMaxStorageConnectionsPerHost(1);
+		InputStream in = mfs.getFileStream("key");
+		Future<byte[]> second = Executors.newSingleThreadExecutor().submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				return mfs.getFileBytes("key");
+			}
+		});
+		try {
+			second.get(300, TimeUnit.MILLISECONDS);
+			fail("read didn't wait for the only connection to the storage node");
+		} catch (TimeoutException e) {
+			// still waiting
+		}
+
+		in.close();
+		assertArrayEquals(CONTENT, second.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDownloadMissingOnStorage() throws Exception {
+		HttpServer empty = startStatusStorage(404);
+		HttpServer broken = startStatusStorage(500);
+		try {
+			tracker.respond("get_paths", "OK paths=2&path1=" + pathOn(empty) + "&path2=" + pathOn(empty));
+
+			File destination = File.createTempFile("mogilefs", ".fid");
+			assertNull(mfs.getFile("key", destination));
+			assertFalse(destination.exists());
+
+			// a storage node that fails, rather than not having the file, is an error
+			tracker.respond("get_paths", "OK paths=2&path1=" + pathOn(empty) + "&path2=" + pathOn(broken));
+			try {
+				mfs.getFile("key", destination);
+				fail("download from a broken storage node worked");
+			} catch (StorageCommunicationException e) {
+				assertFalse(destination.exists());
+			}
+		} finally {
+			empty.stop(0);
+			broken.stop(0);
+		}
+	}
+
+	@Test
+	public void testStore() throws Exception {
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+		stored.reset();
+
+		for (int i = 0; i < 3; i++) {
+			MogileResponse response = mfs.storeStream("key", "class", new ByteArrayInputStream(CONTENT));
+			assertEquals(CONTENT.length, response.getFileSize());
+		}
+		assertEquals(3 * CONTENT.length, stored.size());
+	}
+
+	@Test
+	public void testStoreFailover() throws Exception {
+		tracker.respond("create_open", "OK fid=1&dev_count=2&devid_1=1&path_1=http://127.0.0.1:1/dev1/0/000/000/0000000001.fid"
+				+ "&devid_2=2&path_2=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+		stored.reset();
+
+		MogileResponse response = mfs.storeStream("key", "class", new ByteArrayInputStream(CONTENT), CONTENT.length);
+		assertEquals("2", response.getDevid());
+		assertEquals(CONTENT.length, stored.size());
+	}
+
+	@Test
+	public void testBufferedStoreRetry() throws Exception {
+		tracker.respond("create_open", "OK fid=1&dev_count=2&devid_1=1&path_1=" + pathOn(fastStorage)
+				+ "&devid_2=2&path_2=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+		mfs.setRetryTimeout(0);
+
+		// the first PUT reads the stream and fails, so it can't be sent again
+		failingPuts.set(1);
+		try {
+			mfs.storeStream("key", "class", new ByteArrayInputStream(CONTENT), CONTENT.length);
+			fail("stored a drained stream");
+		} catch (MogileException e) {
+			// expected
+		}
+
+		// keep a copy, partly in a temp file
+		mfs.setUploadBufferSize(8);
+		stored.reset();
+		failingPuts.set(1);
+		MogileResponse response = mfs.storeStream("key", "class", new ByteArrayInputStream(CONTENT));
+		assertEquals("2", response.getDevid());
+		assertEquals(CONTENT.length, response.getFileSize());
+		assertArrayEquals(CONTENT, stored.toByteArray());
+	}
+
+	@Test
+	public void testAsyncStore() throws Exception {
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+		stored.reset();
+		mfs.setAsyncUploadLimits(2, 1);
+
+		final AtomicInteger uploaded = new AtomicInteger();
+		UploadCallback callback = new UploadCallback() {
+			public void uploaded(final String key, final MogileResponse response) {
+				uploaded.incrementAndGet();
+			}
+
+			public void failed(final String key, final MogileException e) {
+			}
+		};
+
+		List<Future<MogileResponse>> futures = new ArrayList<Future<MogileResponse>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(mfs.storeStreamAsync("key" + i, "class", new ByteArrayInputStream(CONTENT), CONTENT.length,
+					callback));
+		}
+		for (Future<MogileResponse> future : futures) {
+			assertEquals(CONTENT.length, future.get().getFileSize());
+		}
+
+		assertEquals(10, uploaded.get());
+		assertEquals(10 * CONTENT.length, stored.size());
+	}
+
+	@Test
+	public void testAsyncStoreFailure() throws Exception {
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+
+		final List<MogileException> failures = new ArrayList<MogileException>();
+		UploadCallback callback = new UploadCallback() {
+			public void uploaded(final String key, final MogileResponse response) {
+			}
+
+			public void failed(final String key, final MogileException e) {
+				failures.add(e);
+			}
+		};
+
+		InputStream broken = new InputStream() {
+			@Override
+			public int read() {
+				throw new Error("broken stream");
+			}
+		};
+		Future<MogileResponse> future = mfs.storeStreamAsync("key", "class", broken, 10, callback);
+
+		try {
+			future.get();
+			fail("upload from a broken stream worked");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MogileException);
+		}
+		assertEquals(1, failures.size());
+
+		// the callback gets what really went wrong
+		Throwable cause = failures.get(0).getCause();
+		assertTrue(cause instanceof Error);
+		assertEquals("broken stream", cause.getMessage());
+	}
+
+	@Test
+	public void testCloseWhileQueued() throws Exception {
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + pathOn(fastStorage));
+		tracker.respond("create_close", new FakeTracker.Responder() {
+			public String respond(final Map<String, String> args) {
+				try {
+					// hold up the upload that's running
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					// answer right away then
+				}
+				return "OK ";
+			}
+		});
+		mfs.setAsyncUploadLimits(1, 5);
+		mfs.setUploadCloseTimeout(100);
+
+		final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+		UploadCallback callback = new UploadCallback() {
+			public void uploaded(final String key, final MogileResponse response) {
+			}
+
+			public void failed(final String key, final MogileException e) {
+				failed.add(key);
+			}
+		};
+
+		final AtomicInteger closedStreams = new AtomicInteger();
+		List<Future<MogileResponse>> futures = new ArrayList<Future<MogileResponse>>();
+		for (int i = 0; i < 4; i++) {
+			InputStream in = new ByteArrayInputStream(CONTENT) {
+				@Override
+				public void close() throws IOException {
+					closedStreams.incrementAndGet();
+					super.close();
+				}
+			};
+			futures.add(mfs.storeStreamAsync("key" + i, "class", in, CONTENT.length, callback));
+		}
+
+		mfs.close();
+
+		// the first one was running, the others never got to
+		for (int i = 1; i < 4; i++) {
+			assertTrue(futures.get(i).isCancelled());
+			assertTrue(failed.contains("key" + i));
+		}
+		assertTrue(closedStreams.get() >= 3);
+	}
+
+	@Test
+	public void testCloseFinishesUploads() throws Exception {
+		tracker.respond("create_open", "OK fid=1&devid=1&path=" + pathOn(fastStorage));
+		tracker.respond("create_close", "OK ");
+		stored.reset();
+		mfs.setAsyncUploadLimits(1, 10);
+
+		List<Future<MogileResponse>> futures = new ArrayList<Future<MogileResponse>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(mfs.storeStreamAsync("key" + i, "class", new ByteArrayInputStream(CONTENT), CONTENT.length,
+					null));
+		}
+		mfs.close();
+
+		for (Future<MogileResponse> future : futures) {
+			assertEquals(CONTENT.length, future.get().getFileSize());
+		}
+		assertEquals(5 * CONTENT.length, stored.size());
+
+		try {
+			mfs.storeStreamAsync("late", "class", new ByteArrayInputStream(CONTENT), CONTENT.length, null);
+			fail("upload accepted after close");
+		} catch (MogileException e) {
+			// expected
+		}
+		try {
+			mfs.getFileBytes("key");
+			fail("read after close");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private static String pathOn(final HttpServer storage) {
+		return "http://127.0.0.1:" + storage.getAddress().getPort() + "/dev1/0/000/000/0000000001.fid";
+	}
+
+	private static HttpServer startStatusStorage(final int status) throws IOException {
+		HttpServer storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		storage.start();
+		return storage;
+	}
+
+	private static HttpServer startStorage(final long delayMillis, final boolean ranges) throws IOException {
+		HttpServer storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				if ("PUT".equals(exchange.getRequestMethod())) {
+					InputStream in = exchange.getRequestBody();
+					if (failingPuts.getAndDecrement() > 0) {
+						while (in.read() >= 0) {
+							// throw it away
+						}
+						exchange.sendResponseHeaders(500, -1);
+						exchange.close();
+						return;
+					}
+					byte[] buffer = new byte[1024];
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						synchronized (stored) {
+							stored.write(buffer, 0, count);
+						}
+					}
+					exchange.sendResponseHeaders(201, -1);
+					exchange.close();
+					return;
+				}
+				readers.add(exchange.getRemoteAddress());
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					// answer right away then
+				}
+				int from = 0;
+				int to = CONTENT.length - 1;
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if (ranges && (range != null)) {
+					String[] parts = range.substring("bytes=".length()).split("-", -1);
+					from = Integer.parseInt(parts[0]);
+					if (parts[1].length() > 0) {
+						to = Integer.parseInt(parts[1]);
+					}
+				}
+
+				boolean partial = (from > 0) || (to < CONTENT.length - 1);
+				if (partial) {
+					partialResponses.incrementAndGet();
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + CONTENT.length);
+				}
+				exchange.sendResponseHeaders(partial ? 206 : 200, to - from + 1);
+				OutputStream out = exchange.getResponseBody();
+				out.write(CONTENT, from, to - from + 1);
+				out.close();
+			}
+		});
+		storage.setExecutor(Executors.newCachedThreadPool());
+		storage.start();
+		return storage;
+	}
+}
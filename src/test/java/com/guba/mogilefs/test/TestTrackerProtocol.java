@@ -0,0 +1,129 @@
+package com.guba.mogilefs.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guba.mogilefs.MogileFS;
+import com.guba.mogilefs.PathLookupResult;
+import com.guba.mogilefs.PooledMogileFSImpl;
+import com.guba.mogilefs.SimpleMogileFSImpl;
+import com.guba.mogilefs.TrackerCommunicationException;
+
+/**
+ * Round trips through the tracker request encoder and response decoder.
+ */
+public class TestTrackerProtocol {
+
+	private FakeTracker tracker;
+
+	private MogileFS mfs;
+
+	@Before
+	public void setUp() throws Exception {
+		tracker = new FakeTracker();
+		mfs = new SimpleMogileFSImpl("testdomain", new String[] { tracker.getHostString() });
+	}
+
+	@After
+	public void tearDown() {
+		tracker.close();
+	}
+
+	@Test
+	public void testRequestEncoding() throws Exception {
+		tracker.respond("get_paths", "OK paths=0");
+
+		String key = "some key/with+odd&chars=\u00e9\u4e2d\ud83d\ude00\ud800";
+		mfs.getPaths(key, true);
+
+		assertEquals("get_paths domain=testdomain&key=" + URLEncoder.encode(key, "UTF-8") + "&noverify=1",
+				tracker.getRequests().get(0));
+	}
+
+	@Test
+	public void testResponseDecoding() throws Exception {
+		tracker.respond("get_paths", "OK paths=2&path2=http%3A%2F%2F10.0.0.2%3A7500%2Fdev2%2F0%2F000%2F000%2F0000000001.fid"
+				+ "&path1=http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid&junk=a=b&empty=");
+
+		String[] paths = mfs.getPaths("key", false);
+
+		assertArrayEquals(new String[] { "http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid",
+				"http://10.0.0.2:7500/dev2/0/000/000/0000000001.fid" }, paths);
+	}
+
+	@Test
+	public void testListKeysDecoding() throws Exception {
+		tracker.respond("list_keys", "OK key_2=video%3A101&next_after=video%3A101&key_count=2&key_1=video%3A100");
+
+		Object[] result = mfs.listKeys("video:");
+
+		assertArrayEquals(new String[] { "video:100", "video:101" }, (String[]) result[0]);
+		assertEquals("video:101", result[1]);
+	}
+
+	@Test
+	public void testErrorResponse() throws Exception {
+		tracker.respond("get_paths", "ERR unknown_key unknown_key");
+
+		assertNull(mfs.getPaths("missing", false));
+	}
+
+	@Test
+	public void testBatchLookup() throws Exception {
+		tracker.respond("get_paths", "OK paths=1&path1=http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid");
+
+		PooledMogileFSImpl pooled = new PooledMogileFSImpl("testdomain", new String[] { tracker.getHostString() },
+				4, 4, 5000);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			keys.add("key" + i);
+		}
+		keys.add("key0");
+
+		Map<String, PathLookupResult> results = pooled.getPaths(keys, false);
+
+		assertEquals(50, results.size());
+		assertEquals(50, tracker.getRequests().size());
+		assertEquals("key0", results.keySet().iterator().next());
+		for (PathLookupResult result : results.values()) {
+			assertTrue(result.isFound());
+		}
+
+		tracker.respond("get_paths", "ERR unknown_key unknown_key");
+		PathLookupResult missing = pooled.getPaths(keys, false).get("key7");
+		assertNull(missing.getPaths());
+		assertEquals("unknown_key", missing.getErr());
+	}
+
+	@Test
+	public void testGarbageResponseDropsConnection() throws Exception {
+		// a line we can't parse, followed by something that looks like an answer
+		tracker.respond("sleep", "garbage\r\nOK paths=0");
+		tracker.respond("get_paths", "OK paths=1&path1=http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid");
+
+		try {
+			mfs.sleep(0);
+			fail("garbage response was accepted");
+		} catch (TrackerCommunicationException e) {
+			// expected
+		}
+
+		// the leftover line must not be taken for the answer to this
+		String[] paths = mfs.getPaths("key", false);
+
+		assertArrayEquals(new String[] { "http://10.0.0.1:7500/dev1/0/000/000/0000000001.fid" }, paths);
+		assertEquals(2, tracker.getConnectionCount());
+	}
+}